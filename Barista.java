@@ -3,75 +3,177 @@ import helpers.StateLogger;
 
 import java.net.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
 import java.util.*;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class Barista {
 
-    // atomic integers for thread synchronisation purposes
-    private static final AtomicInteger totalCustomers = new AtomicInteger(0);
-    private static final AtomicInteger waitingCustomers = new AtomicInteger(0);
+    // customer and drink counts, updated one whole transition at a time for consistent snapshots
+    private static final CafeCounters counters = new CafeCounters();
 
-    private static final AtomicInteger waitingTeas = new AtomicInteger(0);
-    private static final AtomicInteger waitingCoffees = new AtomicInteger(0);
-    private static final AtomicInteger brewingTeas = new AtomicInteger(0);
-    private static final AtomicInteger brewingCoffees = new AtomicInteger(0);
-    private static final AtomicInteger trayTeas = new AtomicInteger(0);
-    private static final AtomicInteger trayCoffees = new AtomicInteger(0);
+    // command latencies and the time drinks spend waiting, brewing and on the tray, shown by the stats command
+    private static final CafeMetrics metrics = new CafeMetrics();
 
-    // semaphores to ensure there is a maximum of two teas and two coffees brewing at a time
-    private static final Semaphore teaSlots = new Semaphore(2);
-    private static final Semaphore coffeeSlots = new Semaphore(2);
+    // times the stages of each drink, on the simulation's virtual time when one is running
+    private static CafeClock clock = CafeClock.SYSTEM;
 
-    // separate locks for different areas when processing items and disconnecting the client
-    private static final ReentrantLock waitingLock = new ReentrantLock();
-    private static final ReentrantLock brewingLock = new ReentrantLock();
-    private static final ReentrantLock trayLock = new ReentrantLock();
-    private static final ReentrantLock disconnectionLock = new ReentrantLock();
+    // runtime settings, applied by configure before the server starts
+    private static CafeConfig config = CafeConfig.defaults();
 
-    private static final List<Order.OrderItem> waitingArea = new ArrayList<>();
+    // every change to the areas, brewing slots and timers below is an event applied in order on this one
+    // thread, so none of them need a lock; sessions and timers only submit events (and await the result)
+    private static EventLoop core;
+
+    // free brewing slots for each drink type (two of each by default), volatile only so metrics can read them
+    private static volatile int freeTeaSlots;
+    private static volatile int freeCoffeeSlots;
+
+    // a few timer threads (or a simulation's virtual time) submit each drink's completion when its deadline
+    // passes, rather than a thread sleeping per brewing drink
+    private static TaskScheduler brewScheduler;
+    private static final Map<Order.OrderItem, TaskScheduler.Cancellable> brewingTimers = new IdentityHashMap<>();
+
+    // records every order's lifecycle so a restart restores the areas, or null when journal.dir is empty
+    private static volatile CafeJournal journal;
+    // orders restored from the journal, kept until their customer reconnects under the same name or until
+    // journal.reclaim.ms passes, whichever comes first
+    private static final Map<String, Deque<Order>> restoredOrders = new HashMap<>();
+
+    // per drink type FIFO queues, so the next tea or coffee is taken in constant time
+    private static final WaitingArea waitingArea = new WaitingArea();
     private static final List<Order.OrderItem> brewingArea = new ArrayList<>();
     private static final Map<CustomerInfo, List<Order.OrderItem>> trayArea = new HashMap<>();
 
-    private static class CustomerSession {
-        private final Socket clientSocket;
+    // state changes are logged asynchronously, with the overflow policy chosen by log.overflow
+    private static LogPipeline logPipeline;
+
+    // sends replies and notifications for blocking sessions, one writer task per session at a time
+    private static Executor writerExecutor;
+
+    // command handling for one customer, driven either by its own thread or by the selector front end
+    private static class CustomerSession implements SelectorServer.Connection {
+        private final Closeable connection;
         private CustomerInfo customerInfo;
-        private PrintWriter out;
+        private final PrintWriter out;
+        // replies go out as WireProtocol frames instead of lines once the customer asks for them at registration
+        private final WireProtocol.FrameSink frames;
+        private boolean binary = false;
+        // the request id of the command being answered when the customer tagged it, so replies to pipelined
+        // commands can be matched up; notifications pushed in between are never tagged
+        private String lineTag;
+        private boolean frameTagged;
+        private int frameTag;
         private Order currentOrder;
-        private final Object orderLock = new Object();
-
-        public CustomerSession(Socket socket) {
-            this.clientSocket = socket;
+        // a ReentrantLock rather than a monitor, so a virtual thread writing a reply under it is not pinned
+        private final ReentrantLock orderLock = new ReentrantLock();
+        private boolean registrationHandled = false;
+        // reused for every command of this session, so parsing a line allocates nothing
+        private final CommandParser.ParsedCommand parsed = new CommandParser.ParsedCommand();
+
+        public CustomerSession(PrintWriter out, WireProtocol.FrameSink frames, Closeable connection) {
+            this.out = out;
+            this.frames = frames;
+            this.connection = connection;
         }
 
-        private void initialiseConnection(BufferedReader in) throws IOException {
-            out = new PrintWriter(clientSocket.getOutputStream(), true);
+        private void initialiseConnection() {
             out.println("welcome to the virtual café ☕\n");
             out.println("please enter your name to begin:");
-            totalCustomers.incrementAndGet();
-            Barista.logState();
         }
 
-        private void handleCustomerRegistration(BufferedReader in) throws IOException {
-            String name = in.readLine();
+        private void handleCustomerRegistration(String name) {
+            if (name != null && name.startsWith(WireProtocol.HANDSHAKE)) {
+                binary = true;
+                name = name.substring(WireProtocol.HANDSHAKE.length());
+            }
 
             if (name == null || name.trim().isEmpty()) {
-                out.println("✗ name cannot be empty");
+                // the customer is asked again, and the next line is read as a name in whichever protocol it asks for
+                replyError(WireProtocol.EMPTY_NAME, "✗ name cannot be empty");
+                if (!binary) out.println("please enter your name to begin:");
+                binary = false;
                 return;
             }
-
-            customerInfo = new CustomerInfo(name);
+            registrationHandled = true;
+            // only counted once named, so a connection that just reads the greeting (e.g. a router's health
+            // probe) leaves no trace in the state log or the metrics; a customer returning after a restart
+            // takes back the order the journal restored for their name
+            Order restored = Barista.registerCustomer(name);
+            metrics.connections.incrementAndGet();
+            if (restored != null) {
+                customerInfo = restored.getCustomer();
+                currentOrder = restored;
+            } else {
+                customerInfo = new CustomerInfo(name);
+            }
             registerOrderListener();
 
+            if (binary) {
+                // a binary client knows the commands, so it is not sent the help text
+                reply(WireProtocol.textFrame(WireProtocol.REGISTERED, name));
+                if (restored != null) {
+                    reply(WireProtocol.frame(WireProtocol.RESTORED, restored.getTeas(), restored.getCoffees()));
+                    if (restored.isReadyForCollection()) {
+                        sendCompletion(restored);
+                    }
+                }
+                return;
+            }
+
             out.println("\nhello " + name + "! you can\n" +
                     "- place an order (e.g., 'order 2 teas and 1 coffee')\n" +
                     "- check status ('order status')\n" +
                     "- collect your order ('collect')\n" +
                     "- leave the café ('exit')");
+
+            if (restored != null) {
+                out.println("✓ welcome back, your order was kept for you: " + restored);
+                if (restored.isReadyForCollection()) {
+                    out.println(completionMessage(restored));
+                }
+            }
+        }
+
+        // one reply to the current command, with each of its lines tagged when the command was
+        private void reply(String text) {
+            if (lineTag == null) {
+                out.println(text);
+            } else {
+                out.println(lineTag + " " + text.replace("\n", "\n" + lineTag + " "));
+            }
+        }
+
+        private void reply(byte[] frame) {
+            frames.sendFrame(frameTagged ? WireProtocol.tagged(WireProtocol.REPLY, frameTag, frame) : frame);
+        }
+
+        private void replyError(byte code, String text) {
+            if (binary) {
+                reply(WireProtocol.errorFrame(code, ""));
+            } else {
+                reply(text);
+            }
+        }
+
+        private void sendCompletion(Order order) {
+            if (binary) {
+                frames.sendFrame(WireProtocol.frame(WireProtocol.COMPLETED, order.getTeas(), order.getCoffees()));
+            } else {
+                out.println(completionMessage(order));
+                out.flush();
+            }
+        }
+
+        private static String completionMessage(Order order) {
+            return "order for " + order.getCustomer().getCustomerName() +
+                    " (" + order.formatOrderItems() + ")" +
+                    " completed. please collect by typing 'collect'!";
         }
 
         private void processCustomerInput(BufferedReader in) throws IOException {
@@ -81,97 +183,186 @@ public class Barista {
             }
         }
 
+        private void processFrames(DataInputStream in) throws IOException {
+            ByteBuffer frame;
+            while ((frame = WireProtocol.readFrame(in, WireProtocol.MAX_FRAME)) != null) {
+                if (handleFrame(frame)) break;
+            }
+        }
+
+        @Override
+        public void onOpen() {
+            initialiseConnection();
+        }
+
+        // the first line is the customer's name, and every line after it is a command
+        @Override
+        public boolean onLine(String line) {
+            if (!registrationHandled) {
+                handleCustomerRegistration(line);
+                return false;
+            }
+            return handleCommand(line);
+        }
+
+        @Override
+        public boolean isBinary() {
+            return binary;
+        }
+
+        @Override
+        public boolean onFrame(ByteBuffer frame) {
+            return handleFrame(frame);
+        }
+
+        @Override
+        public void onClose() {
+            disconnectClient();
+        }
+
         private boolean handleCommand(String command) {
 
-            // match input strings through regex matching
-            String action = RegexProcessor.identifyCommand(command);
+            long start = System.nanoTime();
+
+            // "#<id> <command>" has every line of the reply start with "#<id> "
+            lineTag = null;
+            if (!command.isEmpty() && command.charAt(0) == '#') {
+                int end = 1;
+                while (end < command.length() && !Character.isWhitespace(command.charAt(end))) end++;
+                lineTag = command.substring(0, end);
+                command = command.substring(end).trim();
+            }
+
+            // one pass over the line decides the command and, for orders, the quantities
+            CommandParser.parse(command, parsed);
+            return dispatch(start);
+        }
+
+        private boolean handleFrame(ByteBuffer frame) {
+            long start = System.nanoTime();
 
-            switch (action) {
-                case "exit" -> {
-                    out.println("exit");
-                    return true;
+            // a TAGGED frame carries a request id and then the command itself, which is at least its type byte
+            frameTagged = frame.remaining() >= 6 && frame.get(frame.position()) == WireProtocol.TAGGED;
+            if (frameTagged) {
+                frame.get();
+                frameTag = frame.getInt();
+            }
+            CommandParser.parse(frame, parsed);
+            return dispatch(start);
+        }
+
+        private boolean dispatch(long start) {
+            boolean exit = false;
+            switch (parsed.getType()) {
+                case EXIT -> {
+                    if (binary) reply(WireProtocol.frame(WireProtocol.BYE));
+                    else reply("exit");
+                    exit = true;
                 }
-                case "collect" -> handleCollection();
-                case "status" -> handleOrderStatus();
-                case "order" -> {
-                    int[] quantities = RegexProcessor.parseOrder(command);
-                    if (quantities[0] > 0 || quantities[1] > 0) {
-                        handleIncomingOrder(command);
-                    } else {
-                        out.println("✗ invalid order format");
-                    }
+                case COLLECT -> handleCollection();
+                case STATUS -> handleOrderStatus();
+                // a batch's line items were summed by the parser into this customer's order, as one step; a
+                // connection is always a single customer, so a batch cannot order for anyone else
+                case ORDER, BATCH -> handleIncomingOrder(parsed.getTeas(), parsed.getCoffees());
+                case STATS -> {
+                    // server wide figures, so customers only see them where the operator turned them on
+                    if (!config.statsCommand) replyError(WireProtocol.INVALID_COMMAND, "✗ stats are not available, see the metrics endpoint");
+                    else if (binary) reply(WireProtocol.textFrame(WireProtocol.TEXT, metrics.format()));
+                    else reply(metrics.format());
                 }
-                default -> out.println("✗ invalid command");
+                case INVALID_ORDER -> replyError(WireProtocol.INVALID_ORDER, "✗ invalid order format");
+                default -> replyError(WireProtocol.INVALID_COMMAND, "✗ invalid command");
             }
-            return false;
+
+            metrics.recordCommand(parsed.getType(), System.nanoTime() - start);
+            return exit;
         }
 
-        private void handleIncomingOrder(String command) {
+        private void handleIncomingOrder(int teas, int coffees) {
 
-            // contain input command processing in regex processor
-            final int[] quantities = RegexProcessor.parseOrder(command);
+            orderLock.lock();
+            try {
+                // checked before any drink is made, so no count a customer sends can exhaust the server's memory
+                long drinks = (long) teas + coffees + (currentOrder == null ? 0 : currentOrder.getItems().size());
+                if (drinks > config.orderMaxDrinks) {
+                    String refusal = "orders are limited to " + config.orderMaxDrinks + " drinks";
+                    if (binary) reply(WireProtocol.errorFrame(WireProtocol.ORDER_REFUSED, refusal));
+                    else reply("✗ error: " + refusal);
+                    return;
+                }
 
-            synchronized (orderLock) {
                 if (currentOrder == null) {
                     // for a new order from a customer
-                    currentOrder = new Order(customerInfo, quantities[0], quantities[1]);
-                    Barista.setClientWaiting(1);
-                    out.println("✓ order received for " + currentOrder);
-                    Barista.addToWaitingArea(currentOrder, quantities[0], quantities[1], true);
+                    currentOrder = new Order(customerInfo, teas, coffees);
+                    // acknowledged once queued, which is also once the journal has it
+                    Barista.addToWaitingArea(currentOrder, currentOrder.getItems(), true);
+                    if (binary) {
+                        reply(WireProtocol.frame(WireProtocol.ORDER_PLACED, currentOrder.getTeas(), currentOrder.getCoffees()));
+                    } else {
+                        reply("✓ order received for " + currentOrder);
+                    }
                 } else if (currentOrder.isReadyForCollection()) {
                     // illogical to keep ordering if the order is already available for collection
-                    out.println("✗ please collect your completed order before placing a new one");
+                    replyError(WireProtocol.COLLECT_FIRST, "✗ please collect your completed order before placing a new one");
                 } else {
                     // to update an existing order from a customer
                     try {
-                        currentOrder.addItems(quantities[0], quantities[1]);
-                        out.println("✓ updated order for " + customerInfo.getCustomerName() + ": " + currentOrder);
-                        Barista.addToWaitingArea(currentOrder, quantities[0], quantities[1], false);
+                        Barista.extendOrder(currentOrder, teas, coffees);
+                        if (binary) {
+                            reply(WireProtocol.frame(WireProtocol.ORDER_UPDATED, currentOrder.getTeas(), currentOrder.getCoffees()));
+                        } else {
+                            reply("✓ updated order for " + customerInfo.getCustomerName() + ": " + currentOrder);
+                        }
                     } catch (IllegalStateException e) {
-                        out.println("✗ error: " + e.getMessage());
+                        if (binary) reply(WireProtocol.errorFrame(WireProtocol.ORDER_REFUSED, e.getMessage()));
+                        else reply("✗ error: " + e.getMessage());
                     }
                 }
+            } finally {
+                orderLock.unlock();
             }
         }
 
         private void handleOrderStatus() {
             if (currentOrder == null) {
-                out.println("✗ no order found for " + customerInfo.getCustomerName());
+                replyError(WireProtocol.NO_ORDER, "✗ no order found for " + customerInfo.getCustomerName());
+            } else if (binary) {
+                Order.AreaCounts counts = currentOrder.getAreaCounts();
+                reply(WireProtocol.frame(WireProtocol.ORDER_STATUS,
+                        counts.waitingTeas, counts.waitingCoffees, counts.brewingTeas, counts.brewingCoffees,
+                        counts.trayTeas, counts.trayCoffees));
             } else {
-                String status = Barista.getOrderStatus(currentOrder);
-                out.println(status);
-                out.flush();
+                reply(Barista.getOrderStatus(currentOrder));
             }
         }
 
         private void handleCollection() {
             if (currentOrder == null) {
-                out.println("✗ no order for " + customerInfo.getCustomerName() + " to collect");
+                replyError(WireProtocol.NO_ORDER, "✗ no order for " + customerInfo.getCustomerName() + " to collect");
                 return;
             }
 
             if (!currentOrder.isReadyForCollection() || !Barista.collectOrder(currentOrder)) {
-                out.println("✗ order not ready for " + customerInfo.getCustomerName() + " yet");
+                replyError(WireProtocol.NOT_READY, "✗ order not ready for " + customerInfo.getCustomerName() + " yet");
                 return;
             }
 
             currentOrder = null;
-            Barista.setClientWaiting(-1);
-            out.println("✓ order collected for " + customerInfo.getCustomerName());
+            if (binary) reply(WireProtocol.frame(WireProtocol.COLLECTED));
+            else reply("✓ order collected for " + customerInfo.getCustomerName());
         }
 
         private void disconnectClient() {
             if (customerInfo == null) {
+                // left before giving a name, so was never counted
                 return;
             }
 
             try {
-                Barista.handleClientDisconnection(customerInfo, currentOrder, totalCustomers);
-                if (!clientSocket.isClosed()) {
-                    // in case of any errors in closing client in the server class
-                    out.flush();
-                    clientSocket.close();
-                }
+                Barista.handleClientDisconnection(customerInfo, currentOrder);
+                // in case of any errors in closing client in the server class
+                out.flush();
+                connection.close();
             } catch (IOException e) {
                 out.println("✗ error: " + e.getMessage());
             }
@@ -182,18 +373,16 @@ public class Barista {
             OrderListeners.registerListener(customerInfo, new OrderListeners.OrderListener() {
                 @Override
                 public void onOrderCompleted(Order order) {
-                    if (out != null) {
-                        out.println("order for " + order.getCustomer().getCustomerName() +
-                                " (" + order.formatOrderItems() + ")" +
-                                " completed. please collect by typing 'collect'!");
-                        out.flush();
-                    }
+                    sendCompletion(order);
                 }
 
                 @Override
                 public void onOrderRepurposed(String itemType, String fromCustomer, String fromLocation,
                                               String toCustomer, String toLocation) {
-                    if (out != null) {
+                    if (binary) {
+                        frames.sendFrame(WireProtocol.repurposedFrame(itemType.equals("tea"),
+                                fromLocation.equals("in tray"), fromCustomer));
+                    } else {
                         String message = String.format("1 %s %s for %s has been transferred to %s's %s",
                                 itemType, fromLocation, fromCustomer, toCustomer, toLocation);
                         out.println(message);
@@ -206,661 +395,699 @@ public class Barista {
 
     }
 
-    public static void main(String[] args) {
-        try (ServerSocket serverSocket = new ServerSocket(8888)) {
-            System.out.println("Starting server on port 8888...");
-
-            // store tea and coffee threads
-            List<Thread> brewingThreads = new ArrayList<>();
-
-            for (int i = 0; i < 2; i++) {
-                Thread teaThread = new Thread(() -> brewDrink(true));
-                Thread coffeeThread = new Thread(() -> brewDrink(false));
-                brewingThreads.add(teaThread);
-                brewingThreads.add(coffeeThread);
-                teaThread.start();
-                coffeeThread.start();
-            }
-
-            AtomicBoolean isRunning = new AtomicBoolean(true);
-
-            Thread shutdownThread = new Thread(() -> {
-                try {
-                    System.out.println("server closing...");
-
-                    isRunning.set(false);
-
-                    serverSocket.close();
+    // builds the brewing slots, timers and state logging from the configuration
+    private static void configure(CafeConfig cafeConfig, ThreadFactory threadFactory) {
+        config = cafeConfig;
+        freeTeaSlots = config.teaSlots;
+        freeCoffeeSlots = config.coffeeSlots;
+        core = EventLoop.start("cafe-core");
 
-                    // interrupt brewing threads and ensure they finish safely
-                    brewingThreads.forEach(Thread::interrupt);
+        brewScheduler = TaskScheduler.fromExecutor(new ScheduledThreadPoolExecutor(config.brewThreads, threadFactory));
 
-                    for (Thread thread : brewingThreads) {
-                        try {
-                            thread.join(1000);
-                        } catch (InterruptedException e) {
-                            Thread.currentThread().interrupt();
-                        }
-                    }
-
-                } catch (IOException e) {
-                    System.err.println("error: " + e.getMessage());
-                }
-            });
-
-            while (isRunning.get()) {
-                try {
-                    Socket clientSocket = serverSocket.accept();
-                    // initiate new customer connection
-                    CustomerSession session = new CustomerSession(clientSocket);
-                    new Thread(() -> {
-                        try {
-                            BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                            session.initialiseConnection(in);
-                            session.handleCustomerRegistration(in);
-                            session.processCustomerInput(in);
-                        } catch (IOException ignored) {
-                        } finally {
-                            session.disconnectClient();
-                        }
-                    }).start();
-                } catch (IOException e) {
-                    if (isRunning.get()) {
-                        System.err.println("error: " + e.getMessage());
-                    }
-                }
-            }
+        logPipeline = new LogPipeline(config.logCapacity, config.logOverflow, true);
+    }
 
-            // proceed to close the main method
-            shutdownThread.start();
+    // runs every brewing deadline on the simulation's virtual time, optionally logging states without printing them
+    static void configureSimulation(CafeConfig cafeConfig, DiscreteEventScheduler scheduler, boolean logStates) {
+        config = cafeConfig;
+        freeTeaSlots = config.teaSlots;
+        freeCoffeeSlots = config.coffeeSlots;
+        // the simulation runs on one thread already, so each event is applied as it is submitted
+        core = EventLoop.inline();
+
+        brewScheduler = scheduler;
+        clock = scheduler;
+        StateLogger.setClock(scheduler);
+        OrderListeners.setDispatcher(Runnable::run);
+
+        // the simulation is the log's only producer and can wait for it, so no state is lost from the log
+        logPipeline = logStates ? new LogPipeline(config.logCapacity, LogPipeline.OverflowPolicy.BLOCK, false) : null;
+    }
 
-        } catch (IOException e) {
+    public static void main(String[] args) {
+        CafeConfig cafeConfig;
+        try {
+            cafeConfig = CafeConfig.load(args);
+        } catch (IllegalArgumentException e) {
             System.err.println("error: " + e.getMessage());
+            return;
         }
-    }
+        boolean useVirtualThreads = cafeConfig.useVirtualThreads;
 
-    private static void brewDrink(boolean isTea) {
-        Semaphore slots = isTea ? teaSlots : coffeeSlots;
-        int brewTime = isTea ? 30000 : 45000;
-
-        while (true) {
-            try {
-                // attempt to acquire one of four available slots
-                slots.acquire();
-                Order.OrderItem item = removeFromWaitingArea(isTea);
+        if (useVirtualThreads && !SessionExecutors.virtualThreadsAvailable()) {
+            System.out.println("virtual threads need Java 21 or later, using platform threads");
+        }
+        ThreadFactory threadFactory = SessionExecutors.threadFactory(useVirtualThreads);
+        Executor sessionExecutor = SessionExecutors.perTaskExecutor(useVirtualThreads);
+        writerExecutor = SessionExecutors.writerExecutor(useVirtualThreads);
 
-                // proceed to brew if the customer hasn't cancelled an order
-                if (item != null && !item.isCancelled()) {
+        configure(cafeConfig, threadFactory);
+        System.out.println(config.describe());
 
-                    try {
-                        // lock the brewing area to add a drink
-                        brewingLock.lock();
-                        try {
-                            item.setToBrewing();
-                            brewingArea.add(item);
-                            updateBrewing(isTea ? 1 : 0, isTea ? 0 : 1);
-                        } finally {
-                            brewingLock.unlock();
-                        }
+        // flush queued log entries and journal records when the server is stopped
+        Runtime.getRuntime().addShutdownHook(new Thread(Barista::closeLog));
 
-                        // sleep for 30s for tea, 45s for coffee
-                        Thread.sleep(brewTime);
-
-                        // proceed to handle the drink the customer did not cancel during brewing
-                        if (!item.isCancelled()) {
-                            brewingLock.lock();
-                            try {
-                                brewingArea.remove(item);
-                                updateBrewing(isTea ? -1 : 0, isTea ? 0 : -1);
-                            } finally {
-                                brewingLock.unlock();
-                            }
-
-                            // lock tray area to transfer drink
-                            trayLock.lock();
-                            try {
-                                item.setToTray();
-                                CustomerInfo currentOwner = item.getOrder().getCustomer();
-                                trayArea.computeIfAbsent(currentOwner, k -> new ArrayList<>()).add(item);
-                                updateTray(isTea ? 1 : 0, isTea ? 0 : 1);
-
-                                synchronized (trayArea) {
-                                    List<Order.OrderItem> customerTrayItems =
-                                            trayArea.getOrDefault(currentOwner, new ArrayList<>());
-                                    if (customerTrayItems.size() == item.getOrder().getItems().size()) {
-                                        // send order completion information to client
-                                        OrderListeners.notifyOrderCompleted(item.getOrder());
-                                    }
-                                }
-                            } finally {
-                                // unlock to follow brewing cycle and prevent deadlocks
-                                trayLock.unlock();
-                            }
-                        }
-                    } catch (InterruptedException e) {
-                        //
-                        brewingLock.lock();
-                        try {
-                            if (brewingArea.remove(item)) {
-                                updateBrewing(isTea ? -1 : 0, isTea ? 0 : -1);
-                            }
-                        } finally {
-                            brewingLock.unlock();
-                        }
-                        Thread.currentThread().interrupt();
-                    }
-                }
-            } catch (InterruptedException ignored) {
-            } finally {
-                // release slots when brewing is complete
-                slots.release();
-            }
+        if (!openJournal()) {
+            return;
         }
-    }
-
-    public static void addToWaitingArea(Order order, int teas, int coffees, boolean isNewOrder) {
-        synchronized (waitingArea) {
-            List<Order.OrderItem> itemsToAdd;
 
-            if (isNewOrder) {
-                itemsToAdd = order.getItems();
-            } else {
-                // to collect items and append them onto an existing order
-                itemsToAdd = new ArrayList<>();
-                for (int i = 0; i < teas; i++) {
-                    itemsToAdd.add(new Order.OrderItem(true, order));
-                }
-                for (int i = 0; i < coffees; i++) {
-                    itemsToAdd.add(new Order.OrderItem(false, order));
-                }
-            }
+        if (!startMetricsServer()) {
+            return;
+        }
 
-            waitingArea.addAll(itemsToAdd);
-            updateWaiting(teas, coffees);
+        if (config.useSelector) {
+            runSelectorServer();
+        } else {
+            runThreadPerConnectionServer(sessionExecutor, useVirtualThreads);
         }
     }
 
-    private static Order.OrderItem removeFromWaitingArea(boolean isTea) {
-        synchronized (waitingArea) {
-            for (int i = 0; i < waitingArea.size(); i++) {
-                Order.OrderItem item = waitingArea.get(i);
-                if (isTea ? item.isTea() : item.isCoffee()) {
-                    waitingArea.remove(i);
-                    if (isTea) {
-                        updateWaiting(-1, 0);
-                    } else {
-                        updateWaiting(0, -1);
-                    }
-                    return item;
-                }
+    // recovers the previous run's orders from journal.dir and puts their drinks back where they were
+    private static boolean openJournal() {
+        if (config.journalDir.isEmpty()) {
+            return true;
+        }
+        long start = System.nanoTime();
+        try {
+            CafeJournal opened = CafeJournal.open(Paths.get(config.journalDir), config.journalSync,
+                    config.journalSnapshotRecords);
+            Runtime.getRuntime().addShutdownHook(new Thread(opened::close));
+            int restored = core.call(() -> {
+                journal = opened;
+                return restoreOrders(opened);
+            });
+            if (restored > 0) {
+                System.out.printf("restored %d orders from %s in %.1f ms%n",
+                        restored, config.journalDir, (System.nanoTime() - start) / 1e6);
             }
-            return null;
+            return true;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("error: cannot open journal in " + config.journalDir + ": " + e.getMessage());
+            return false;
         }
     }
 
-    public static boolean collectOrder(Order order) {
-
-        synchronized (trayArea) {
-            List<Order.OrderItem> trayItems = trayArea.get(order.getCustomer());
-
-            if (trayItems == null || trayItems.isEmpty()) {
-                return false;
-            }
-            if (trayItems.stream().anyMatch(Order.OrderItem::isCancelled)) {
-                return false;
+    // rebuilds each journalled order and its drinks, with brewing drinks finishing at their original time
+    private static int restoreOrders(CafeJournal opened) {
+        Order.reserveIds(opened.getMaxOrderId(), opened.getMaxItemId());
+        CafeCounters.Delta delta = new CafeCounters.Delta();
+        List<Order.OrderItem> waiting = new ArrayList<>();
+        long nowMillis = clock.millis();
+        long nowNanos = clock.nanoTime();
+
+        List<CafeJournal.JournalOrder> orders = opened.getOrders();
+        for (CafeJournal.JournalOrder journalled : orders) {
+            Order order = Order.restore(journalled.id, new CustomerInfo(journalled.customerName));
+
+            for (CafeJournal.JournalItem journalledItem : journalled.getItems()) {
+                boolean isTea = journalledItem.isTea;
+                CafeJournal.Stage stage = journalledItem.getStage();
+                Order.OrderItem item = order.restoreItem(journalledItem.id, isTea,
+                        stage == CafeJournal.Stage.BREWING, stage == CafeJournal.Stage.TRAY);
+                item.setStageStartedNanos(nowNanos);
+
+                switch (stage) {
+                    case WAITING -> {
+                        waiting.add(item);
+                        delta.waiting(isTea ? 1 : 0, isTea ? 0 : 1);
+                    }
+                    case BREWING -> {
+                        // a restart can leave more drinks brewing than slots, in which case nothing new starts until they finish
+                        if (isTea) freeTeaSlots--;
+                        else freeCoffeeSlots--;
+                        long elapsed = Math.max(0, nowMillis - journalledItem.getBrewStartedMillis());
+                        item.setStageStartedNanos(nowNanos - elapsed * 1_000_000);
+                        brewingArea.add(item);
+                        long brewTime = isTea ? config.teaBrewMillis : config.coffeeBrewMillis;
+                        startTimer(item, isTea, Math.max(0, brewTime - elapsed));
+                        delta.brewing(isTea ? 1 : 0, isTea ? 0 : 1);
+                    }
+                    case TRAY -> {
+                        trayArea.computeIfAbsent(order.getCustomer(), k -> new ArrayList<>()).add(item);
+                        delta.brewing(isTea ? -1 : 0, isTea ? 0 : -1)
+                    .tray(isTea ? 1 : 0, isTea ? 0 : 1);
+                    }
+                }
             }
 
-            if (trayItems.size() != order.getItems().size()) {
-                return false;
+            if (order.getItems().stream().allMatch(Order.OrderItem::isOnTray)) {
+                order.setReadyForCollection(true);
             }
-
-            int teas = 0, coffees = 0;
-            for (Order.OrderItem item : trayItems) {
-                if (item.isTea()) teas++;
-                else coffees++;
+            restoredOrders.computeIfAbsent(journalled.customerName, k -> new ArrayDeque<>()).add(order);
+            delta.waitingCustomers(1);
+            if (config.journalReclaimMillis > 0) {
+                brewScheduler.schedule(() -> core.execute(() -> expireRestoredOrder(journalled.customerName, order)),
+                        config.journalReclaimMillis);
             }
+        }
 
-            updateTray(-teas, -coffees);
-            trayArea.remove(order.getCustomer());
-
-            // permits the customer to make a new order
-            order.setReadyForCollection(false);
-
-            return true;
+        // item ids grow with arrival, so the waiting queues keep their original order
+        waiting.sort(Comparator.comparingLong(Order.OrderItem::getId));
+        waitingArea.addAll(waiting);
+        startBrewing(true, delta);
+        startBrewing(false, delta);
+        if (!delta.isEmpty()) {
+            transition(delta);
         }
+        return orders.size();
     }
 
-    public static String getOrderStatus(Order order) {
-        StringBuilder status = new StringBuilder();
-
-        List<Order.OrderItem> waitingItems;
-        List<Order.OrderItem> brewingItems;
-        List<Order.OrderItem> trayItems;
-
-        synchronized (waitingArea) {
-            waitingItems = waitingArea.stream()
-                    .filter(item -> !item.isCancelled() &&
-                            item.getOrder().equals(order) &&
-                            item.isWaiting())
-                    .toList();
-        }
+    // counts a newly named customer and hands back the oldest order restored for their name, or null if
+    // there is none, as one event
+    static Order registerCustomer(String name) {
+        return core.call(() -> {
+            transition(new CafeCounters.Delta().customers(1));
+            Deque<Order> orders = restoredOrders.get(name);
+            if (orders == null) {
+                return null;
+            }
+            Order order = orders.poll();
+            if (orders.isEmpty()) {
+                restoredOrders.remove(name);
+            }
+            return order;
+        });
+    }
 
-        synchronized (brewingArea) {
-            brewingItems = brewingArea.stream()
-                    .filter(item -> !item.isCancelled() &&
-                            item.getOrder().equals(order) &&
-                            item.isBrewing())
-                    .toList();
+    // a restored order nobody came back for is cancelled as if its customer had left, freeing its drinks
+    private static void expireRestoredOrder(String name, Order order) {
+        Deque<Order> orders = restoredOrders.get(name);
+        if (orders == null || !orders.remove(order)) {
+            // reclaimed in the meantime
+            return;
         }
-
-        synchronized (trayArea) {
-            List<Order.OrderItem> customerTray = trayArea.get(order.getCustomer());
-            trayItems = (customerTray != null) ? customerTray.stream()
-                    .filter(item -> !item.isCancelled() &&
-                            item.getOrder().equals(order) &&
-                            item.isOnTray())
-                    .toList() : new ArrayList<>();
+        if (orders.isEmpty()) {
+            restoredOrders.remove(name);
         }
+        // never counted as a connected customer, so only the order's own changes are logged
+        CafeCounters.Delta delta = new CafeCounters.Delta();
+        cancelOrder(order.getCustomer(), order, delta);
+        transition(delta);
+        System.out.println("cancelled " + name + "'s restored order, not reclaimed within " +
+                config.journalReclaimMillis / 1000 + " s");
+    }
 
-        status.append("order status for ").append(order.getCustomer().getCustomerName()).append(":");
-
-        if (!waitingItems.isEmpty()) {
-            status.append("\n- ");
-            Order temp = new Order(null,
-                    (int) waitingItems.stream().filter(Order.OrderItem::isTea).count(),
-                    (int) waitingItems.stream().filter(Order.OrderItem::isCoffee).count());
-            status.append(temp.formatOrderItems()).append(" in waiting area");
+    // blocks the calling session until the journal has the changes its last event made on disk, which are
+    // at or before the latest record once the event has been applied
+    private static void awaitJournal() {
+        CafeJournal current = journal;
+        if (current != null) {
+            current.awaitDurable(current.getLastLsn());
         }
+    }
 
-        if (!brewingItems.isEmpty()) {
-            status.append("\n- ");
-            Order temp = new Order(null,
-                    (int) brewingItems.stream().filter(Order.OrderItem::isTea).count(),
-                    (int) brewingItems.stream().filter(Order.OrderItem::isCoffee).count());
-            status.append(temp.formatOrderItems()).append(" currently brewing");
+    // serves /metrics when metrics.port is set, returning false if the port cannot be bound
+    private static boolean startMetricsServer() {
+        InetSocketAddress address = config.metricsAddress();
+        if (address == null) {
+            return true;
         }
-
-        if (!trayItems.isEmpty()) {
-            status.append("\n- ");
-            Order temp = new Order(null,
-                    (int) trayItems.stream().filter(Order.OrderItem::isTea).count(),
-                    (int) trayItems.stream().filter(Order.OrderItem::isCoffee).count());
-            status.append(temp.formatOrderItems()).append(" on the tray");
+        try {
+            MetricsServer server = new MetricsServer(address, Barista::scrapeMetrics);
+            server.start();
+            System.out.println("Serving metrics on http://" + address.getHostString() + ":" +
+                    server.getAddress().getPort() + "/metrics");
+            return true;
+        } catch (IOException e) {
+            System.err.println("error: cannot serve metrics on port " + config.metricsPort + ": " + e.getMessage());
+            return false;
         }
-
-        return status.toString();
     }
 
-    public static void setClientWaiting(int delta) {
-        synchronized (waitingCustomers) {
-            waitingCustomers.addAndGet(delta);
-            logState();
-        }
+    // read from the counter snapshot, slot counts and lock free histograms, so scraping never waits on the event loop
+    static String scrapeMetrics() {
+        CafeCounters.Snapshot state = counters.snapshot();
+        PrometheusText text = new PrometheusText();
+
+        text.family("cafe_drinks", "gauge", "Drinks in each area of the café.")
+                .sample("cafe_drinks", "area=\"waiting\",type=\"tea\"", state.waitingTeas)
+                .sample("cafe_drinks", "area=\"waiting\",type=\"coffee\"", state.waitingCoffees)
+                .sample("cafe_drinks", "area=\"brewing\",type=\"tea\"", state.brewingTeas)
+                .sample("cafe_drinks", "area=\"brewing\",type=\"coffee\"", state.brewingCoffees)
+                .sample("cafe_drinks", "area=\"tray\",type=\"tea\"", state.trayTeas)
+                .sample("cafe_drinks", "area=\"tray\",type=\"coffee\"", state.trayCoffees);
+        text.family("cafe_customers", "gauge", "Connected customers, and those with an order in progress.")
+                .sample("cafe_customers", "state=\"connected\"", state.totalCustomers)
+                .sample("cafe_customers", "state=\"waiting\"", state.waitingCustomers);
+        text.family("cafe_brewing_slots_available", "gauge", "Free brewing slots for each drink type.")
+                .sample("cafe_brewing_slots_available", "type=\"tea\"", freeTeaSlots)
+                .sample("cafe_brewing_slots_available", "type=\"coffee\"", freeCoffeeSlots);
+
+        text.family("cafe_event_queue_depth", "gauge", "State changes waiting for the event loop.")
+                .sample("cafe_event_queue_depth", "", core.getQueueDepth());
+        text.family("cafe_event_wait_seconds", "summary", "Time state changes wait in the queue before being applied.")
+                .summary("cafe_event_wait_seconds", "", core.getWaitTimes());
+        text.family("cafe_event_run_seconds", "summary", "Time the event loop spends applying each state change.")
+                .summary("cafe_event_run_seconds", "", core.getRunTimes());
+
+        metrics.writeTo(text);
+        return text.toString();
     }
 
-    public static void updateWaiting(int teas, int coffees) {
-        waitingTeas.addAndGet(teas);
-        waitingCoffees.addAndGet(coffees);
-        logState();
+    // non-blocking mode, where a few selector threads serve every customer connection
+    private static void runSelectorServer() {
+        try {
+            // commands run off the selector threads, so one waiting on the journal's fsync holds up only its own customer
+            SelectorServer server = new SelectorServer(config.listenAddress(), config.ioThreads,
+                    config.outboxHighWater, SessionExecutors.commandExecutor(config.useVirtualThreads, config.commandThreads),
+                    CustomerSession::new);
+            System.out.println("Starting server on port " + config.port +
+                    " (selector mode, " + config.ioThreads + " io threads)...");
+            server.run();
+        } catch (IOException e) {
+            System.err.println("error: " + e.getMessage());
+        }
     }
 
-    public static void updateBrewing(int teas, int coffees) {
-        brewingTeas.addAndGet(teas);
-        brewingCoffees.addAndGet(coffees);
-        logState();
-    }
+    // one blocking thread per customer connection, either a platform thread or a virtual thread
+    private static void runThreadPerConnectionServer(Executor sessionExecutor, boolean useVirtualThreads) {
+        // not a try-with-resources, since the shutdown thread is what closes it
+        ServerSocket serverSocket = null;
+        try {
+            serverSocket = new ServerSocket();
+            serverSocket.bind(config.listenAddress());
+        } catch (IOException e) {
+            System.err.println("error: " + e.getMessage());
+            closeQuietly(serverSocket);
+            return;
+        }
+        System.out.println("Starting server on port " + config.port +
+                (useVirtualThreads && SessionExecutors.virtualThreadsAvailable() ? " (virtual threads)" : "") + "...");
 
-    public static void updateTray(int teas, int coffees) {
-        trayTeas.addAndGet(teas);
-        trayCoffees.addAndGet(coffees);
-        logState();
-    }
+        AtomicBoolean isRunning = new AtomicBoolean(true);
+        ServerSocket listening = serverSocket;
 
-    public static void logState() {
-        StringBuilder state = new StringBuilder("\n-+-+-+-+-+-+-+-+-+\n");
+        Thread shutdownThread = new Thread(() -> {
+            System.out.println("server closing...");
 
-        state.append("clients in café: ").append(totalCustomers.get()).append("\n");
-        state.append("clients waiting: ").append(waitingCustomers.get()).append("\n");
+            isRunning.set(false);
 
-        state.append("waiting area: ");
-        if (waitingTeas.get() > 0 || waitingCoffees.get() > 0) {
-            if (waitingTeas.get() > 0) {
-                state.append(waitingTeas.get()).append(" tea").append(waitingTeas.get() != 1 ? "s" : "");
-                if (waitingCoffees.get() > 0) state.append(" and ");
-            }
-            if (waitingCoffees.get() > 0) {
-                state.append(waitingCoffees.get()).append(" coffee").append(waitingCoffees.get() != 1 ? "s" : "");
-            }
-        } else {
-            state.append("empty");
-        }
-        state.append("\n");
+            closeQuietly(listening);
 
-        state.append("brewing area: ");
-        if (brewingTeas.get() > 0 || brewingCoffees.get() > 0) {
-            if (brewingTeas.get() > 0) {
-                state.append(brewingTeas.get()).append(" tea").append(brewingTeas.get() != 1 ? "s" : "");
-                if (brewingCoffees.get() > 0) state.append(" and ");
-            }
-            if (brewingCoffees.get() > 0) {
-                state.append(brewingCoffees.get()).append(" coffee").append(brewingCoffees.get() != 1 ? "s" : "");
-            }
-        } else {
-            state.append("empty");
-        }
-        state.append("\n");
+            // stop the brewing timers and ensure they finish safely
+            brewScheduler.shutdown();
+            core.shutdown();
+        });
 
-        state.append("tray area: ");
-        if (trayTeas.get() > 0 || trayCoffees.get() > 0) {
-            if (trayTeas.get() > 0) {
-                state.append(trayTeas.get()).append(" tea").append(trayTeas.get() != 1 ? "s" : "");
-                if (trayCoffees.get() > 0) state.append(" and ");
-            }
-            if (trayCoffees.get() > 0) {
-                state.append(trayCoffees.get()).append(" coffee").append(trayCoffees.get() != 1 ? "s" : "");
+        while (isRunning.get()) {
+            try {
+                Socket clientSocket = listening.accept();
+                // initiate new customer connection
+                sessionExecutor.execute(() -> runBlockingSession(clientSocket));
+            } catch (IOException e) {
+                if (isRunning.get()) {
+                    System.err.println("error: " + e.getMessage());
+                }
             }
-        } else {
-            state.append("empty");
         }
-        state.append("\n");
 
-        state.append("-+-+-+-+-+-+-+-+-+");
-        System.out.println(state);
+        // proceed to close the main method
+        shutdownThread.start();
+    }
 
-        StateLogger.log(new StateLogger.State(
-                totalCustomers,
-                waitingCustomers,
-                new StateLogger.DrinkCount(waitingTeas, waitingCoffees),
-                new StateLogger.DrinkCount(brewingTeas, brewingCoffees),
-                new StateLogger.DrinkCount(trayTeas, trayCoffees)
-        ));
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            System.err.println("error: " + e.getMessage());
+        }
     }
 
-    private static boolean acquireLocks() {
-        // sequence of lock acquisition to prevent deadlocking in fine grained concurrency
+    private static void runBlockingSession(Socket clientSocket) {
+        CustomerSession session = null;
         try {
-            if (!disconnectionLock.tryLock(2, TimeUnit.SECONDS)) {
-                return false;
-            }
-            if (!waitingLock.tryLock(1, TimeUnit.SECONDS)) {
-                disconnectionLock.unlock();
-                return false;
+            InputStream in = new BufferedInputStream(clientSocket.getInputStream());
+            // every thread writing to this customer only queues its message, and closing waits for the queue to drain
+            SessionOutbox outbox = new SessionOutbox(clientSocket.getOutputStream(), clientSocket,
+                    writerExecutor, config.outboxHighWater);
+            session = new CustomerSession(new PrintWriter(outbox, true), outbox, outbox);
+            session.initialiseConnection();
+            // the name line is read unbuffered, so frames sent right after a binary handshake stay in the stream
+            while (!session.registrationHandled) {
+                String name = WireProtocol.readLine(in);
+                if (name == null) {
+                    return;
+                }
+                session.handleCustomerRegistration(name);
             }
-            if (!brewingLock.tryLock(1, TimeUnit.SECONDS)) {
-                waitingLock.unlock();
-                disconnectionLock.unlock();
-                return false;
+            if (session.binary) {
+                session.processFrames(new DataInputStream(in));
+            } else {
+                session.processCustomerInput(new BufferedReader(new InputStreamReader(in)));
             }
-            if (!trayLock.tryLock(1, TimeUnit.SECONDS)) {
-                brewingLock.unlock();
-                waitingLock.unlock();
-                disconnectionLock.unlock();
-                return false;
+        } catch (IOException ignored) {
+        } finally {
+            if (session != null) {
+                session.disconnectClient();
             }
-            return true;
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            return false;
         }
     }
 
-    private static void cleanupWaitingArea(CustomerInfo customerInfo) {
-        synchronized (waitingArea) {
-            // no filtering for non-repurposed items, that only applies to the brewing and tray areas
-            List<Order.OrderItem> itemsToRemove = waitingArea.stream()
-                    .filter(item -> item.getOrder().getCustomer().equals(customerInfo))
-                    .toList();
+    // fills every free slot of one drink type from the waiting area and registers each drink's completion time
+    // fills the free slots of one type from the waiting area, adding each drink's move to the caller's
+    // transition rather than logging it on its own
+    private static void startBrewing(boolean isTea, CafeCounters.Delta delta) {
+        int brewTime = isTea ? config.teaBrewMillis : config.coffeeBrewMillis;
+
+        while ((isTea ? freeTeaSlots : freeCoffeeSlots) > 0) {
+            Order.OrderItem item = removeFromWaitingArea(isTea);
+            if (item == null) {
+                return;
+            }
 
-            if (!itemsToRemove.isEmpty()) {
-                int teas = Order.countItemsByType(itemsToRemove, true);
-                int coffees = Order.countItemsByType(itemsToRemove, false);
-                waitingArea.removeAll(itemsToRemove);
-                updateWaiting(-teas, -coffees);
+            // a cancelled item taken from the waiting area only needs to leave the waiting count
+            if (item.isCancelled()) {
+                delta.waiting(isTea ? -1 : 0, isTea ? 0 : -1);
+                continue;
             }
+
+            if (isTea) freeTeaSlots--;
+            else freeCoffeeSlots--;
+
+            long now = clock.nanoTime();
+            metrics.queueWait.record(now - item.getStageStartedNanos());
+            item.setStageStartedNanos(now);
+            item.setToBrewing();
+            brewingArea.add(item);
+            if (journal != null) journal.itemDequeued(item, clock.millis());
+            // 30s for tea and 45s for coffee unless configured otherwise
+            startTimer(item, isTea, brewTime);
+            delta.waiting(isTea ? -1 : 0, isTea ? 0 : -1)
+                    .brewing(isTea ? 1 : 0, isTea ? 0 : 1);
         }
     }
 
-    private static void cleanupBrewingArea(CustomerInfo customerInfo) {
-        synchronized (brewingArea) {
-            // filtering to remove non-repurposed items
-            List<Order.OrderItem> itemsToRemove = brewingArea.stream()
-                    .filter(item -> item.getOrder().getCustomer().equals(customerInfo) &&
-                            !item.isRepurposed())
-                    .toList();
-
-            if (!itemsToRemove.isEmpty()) {
-                int teas = Order.countItemsByType(itemsToRemove, true);
-                int coffees = Order.countItemsByType(itemsToRemove, false);
+    // the drink's completion is an event of its own once the deadline passes
+    private static void startTimer(Order.OrderItem item, boolean isTea, long delayMillis) {
+        brewingTimers.put(item, brewScheduler.schedule(
+                () -> core.execute(() -> finishBrewing(item, isTea)), delayMillis));
+    }
 
-                itemsToRemove.forEach(brewingArea::remove);
-                updateBrewing(-teas, -coffees);
+    private static void releaseSlot(boolean isTea) {
+        if (isTea) freeTeaSlots++;
+        else freeCoffeeSlots++;
+    }
 
-                // release slots for teas or coffees in the waiting area to acquire
-                for (int i = 0; i < teas; i++) {
-                    teaSlots.release();
-                }
-                for (int i = 0; i < coffees; i++) {
-                    coffeeSlots.release();
-                }
+    private static void finishBrewing(Order.OrderItem item, boolean isTea) {
+        // a drink cancelled during brewing already gave its slot back when its timer was removed
+        if (brewingTimers.remove(item) == null) {
+            return;
+        }
+        // by identity, since OrderItem.equals matches any drink of the same type for the same customer
+        brewingArea.removeIf(brewing -> brewing == item);
+        releaseSlot(isTea);
+        // the drink leaving its slot and the next one taking it are logged together
+        CafeCounters.Delta delta = new CafeCounters.Delta();
+
+        // proceed to handle the drink the customer did not cancel during brewing
+        if (!item.isCancelled()) {
+            long now = clock.nanoTime();
+            metrics.brewing.record(now - item.getStageStartedNanos());
+            item.setStageStartedNanos(now);
+            item.setToTray();
+            if (journal != null) journal.brewFinished(item);
+            Order owner = item.getOrder();
+            trayArea.computeIfAbsent(owner.getCustomer(), k -> new ArrayList<>()).add(item);
+            delta.brewing(isTea ? -1 : 0, isTea ? 0 : -1)
+                    .tray(isTea ? 1 : 0, isTea ? 0 : 1);
+
+            // a drink repurposed while brewing counts for its new order
+            if (owner.itemLanded()) {
+                OrderListeners.notifyOrderCompleted(owner);
             }
         }
+
+        startBrewing(isTea, delta);
+        if (!delta.isEmpty()) {
+            transition(delta);
+        }
     }
 
-    private static void cleanupTrayArea(CustomerInfo customerInfo) {
-        synchronized (trayArea) {
-            List<Order.OrderItem> items = trayArea.get(customerInfo);
-            if (items != null && !items.isEmpty()) {
-                // filter to not include repurposed items
-                int teas = (int) items.stream()
-                        .filter(item -> !item.isRepurposed() && item.isTea())
-                        .count();
-                int coffees = (int) items.stream()
-                        .filter(item -> !item.isRepurposed() && item.isCoffee())
-                        .count();
+    // queues items already added to the order, either all of a new order or the ones an update added
+    public static void addToWaitingArea(Order order, List<Order.OrderItem> itemsToAdd, boolean isNewOrder) {
+        core.run(() -> queueItems(order, itemsToAdd, isNewOrder));
+        awaitJournal();
+    }
 
-                updateTray(-teas, -coffees);
+    // grows an order and queues the drinks it gained as one event, so the order never changes under the
+    // brewing and repurposing that run on the event loop; throws IllegalStateException if it is complete
+    public static List<Order.OrderItem> extendOrder(Order order, int teas, int coffees) {
+        List<Order.OrderItem> added = core.call(() -> {
+            List<Order.OrderItem> items = order.addItems(teas, coffees);
+            queueItems(order, items, false);
+            return items;
+        });
+        awaitJournal();
+        return added;
+    }
 
-                items.removeIf(item -> !item.isRepurposed());
+    private static void queueItems(Order order, List<Order.OrderItem> itemsToAdd, boolean isNewOrder) {
+        int teas = Order.countItemsByType(itemsToAdd, true);
+        int coffees = itemsToAdd.size() - teas;
 
+        long now = clock.nanoTime();
+        for (Order.OrderItem item : itemsToAdd) {
+            item.setStageStartedNanos(now);
+        }
+        waitingArea.addAll(itemsToAdd);
+        if (journal != null) {
+            if (isNewOrder) journal.orderPlaced(order, itemsToAdd);
+            else journal.orderExtended(order, itemsToAdd);
+        }
 
-                if (items.isEmpty()) {
-                    trayArea.remove(customerInfo);
-                }
-            }
+        // a new order also makes its customer a waiting customer, recorded as one transition
+        transition(new CafeCounters.Delta()
+                .waitingCustomers(isNewOrder ? 1 : 0)
+                .waiting(teas, coffees));
+
+        // the drinks that go straight into free slots are logged as a second transition
+        CafeCounters.Delta started = new CafeCounters.Delta();
+        if (teas > 0) startBrewing(true, started);
+        if (coffees > 0) startBrewing(false, started);
+        if (!started.isEmpty()) {
+            transition(started);
         }
     }
 
+    private static Order.OrderItem removeFromWaitingArea(boolean isTea) {
+        // the waiting count is adjusted together with the brewing count by the caller
+        return waitingArea.poll(isTea);
+    }
 
-    private static Map<Order, List<Order.OrderItem>> findRepurposeableItems(CustomerInfo disconnectingCustomer) {
-        Map<Order, List<Order.OrderItem>> repurposeMap = new HashMap<>();
-        List<Order.OrderItem> availableItems = new ArrayList<>();
+    public static boolean collectOrder(Order order) {
+        boolean collected = core.call(() -> collect(order));
+        awaitJournal();
+        return collected;
+    }
 
-        // collect brewing items from a leaving customer that are repurposeable
-        brewingLock.lock();
-        try {
-            List<Order.OrderItem> brewingItems = brewingArea.stream()
-                    .filter(item -> {
-                        boolean isCustomerItem = item.getOrder().getCustomer().equals(disconnectingCustomer);
-                        boolean canBeRepurposed = !item.isRepurposed();
-                        return isCustomerItem && canBeRepurposed;
-                    })
-                    .toList();
-            availableItems.addAll(brewingItems);
-        } finally {
-            brewingLock.unlock();
+    private static boolean collect(Order order) {
+        List<Order.OrderItem> trayItems = trayArea.get(order.getCustomer());
+
+        if (trayItems == null || trayItems.isEmpty()) {
+            return false;
+        }
+        if (trayItems.stream().anyMatch(Order.OrderItem::isCancelled)) {
+            return false;
         }
 
-        // collect tray items from a leaving customer that are repurposeable
-        trayLock.lock();
-        try {
-            List<Order.OrderItem> trayItems = trayArea.get(disconnectingCustomer);
-            if (trayItems != null) {
-                List<Order.OrderItem> availableTrayItems = trayItems.stream()
-                        .filter(item -> !item.isRepurposed())
-                        .toList();
-                availableItems.addAll(availableTrayItems);
-            }
-        } finally {
-            trayLock.unlock();
+        if (trayItems.size() != order.getItems().size()) {
+            return false;
         }
 
-        // return early if no repurposable items are available
-        if (availableItems.isEmpty()) {
-            return repurposeMap;
+        int teas = 0, coffees = 0;
+        long now = clock.nanoTime();
+        for (Order.OrderItem item : trayItems) {
+            if (item.isTea()) teas++;
+            else coffees++;
+            metrics.trayDwell.record(now - item.getStageStartedNanos());
         }
 
-        // find customers who waiting for repurposable items
-        waitingLock.lock();
-        try {
-            Map<CustomerInfo, Map<Boolean, Integer>> customerNeeds = new HashMap<>();
+        trayArea.remove(order.getCustomer());
+        if (journal != null) journal.orderCollected(order);
 
-            for (Order.OrderItem item : waitingArea) {
-                boolean isValidWaitingItem = !item.getOrder().getCustomer().equals(disconnectingCustomer)
-                        && !item.isCancelled();
+        // the collecting customer stops waiting in the same transition
+        transition(new CafeCounters.Delta().tray(-teas, -coffees).waitingCustomers(-1));
 
-                // obtain counts of teas and/or coffees needed for the customer
-                if (isValidWaitingItem) {
-                    CustomerInfo customer = item.getOrder().getCustomer();
-                    customerNeeds.computeIfAbsent(customer, k -> new HashMap<>())
-                            .merge(item.isTea(), 1, Integer::sum);
-                }
-            }
+        // permits the customer to make a new order
+        order.setReadyForCollection(false);
 
-            // attempt to match repurposable items with needs of customers
-            for (Map.Entry<CustomerInfo, Map<Boolean, Integer>> entry : customerNeeds.entrySet()) {
-                CustomerInfo customer = entry.getKey();
-                Map<Boolean, Integer> needs = entry.getValue();
+        return true;
+    }
 
-                List<Order.OrderItem> itemsToRepurpose = new ArrayList<>();
+    // answered from the order's own per area counts, without touching the shared areas
+    public static String getOrderStatus(Order order) {
+        return order.getAreaCounts().format(order.getCustomer().getCustomerName());
+    }
 
-                // check items against the customer
-                for (Order.OrderItem item : availableItems) {
-                    boolean itemNeeded = needs.getOrDefault(item.isTea(), 0) > 0;
-                    boolean canBeRepurposed = !item.isRepurposed();
+    // applies one logical transition to the counters and logs the resulting snapshot once
+    public static void transition(CafeCounters.Delta delta) {
+        logState(counters.apply(delta));
+    }
 
-                    if (itemNeeded && canBeRepurposed) {
-                        itemsToRepurpose.add(item);
-                        needs.merge(item.isTea(), -1, Integer::sum);
-                        item.setRepurposed(true);
-                    }
-                }
+    static void closeLog() {
+        if (logPipeline != null) {
+            logPipeline.close();
+        }
+        StateLogger.close();
+    }
 
-                if (!itemsToRepurpose.isEmpty()) {
-                    // identify items on the customer's waiting area to repurpose
-                    Order receivingOrder = waitingArea.stream()
-                            .map(Order.OrderItem::getOrder)
-                            .filter(order -> order.getCustomer().equals(customer))
-                            .findFirst()
-                            .orElse(null);
+    static CafeCounters.Snapshot currentState() {
+        return counters.snapshot();
+    }
 
-                    if (receivingOrder != null) {
-                        repurposeMap.put(receivingOrder, itemsToRepurpose);
-                    }
-                }
-            }
-        } finally {
-            waitingLock.unlock();
+    public static void logState(CafeCounters.Snapshot snapshot) {
+        // snapshots are handed to the logging thread, so callers never wait on console or file output
+        if (logPipeline != null) {
+            logPipeline.submit(new StateLogger.State(snapshot));
         }
+    }
+
+    private static void cleanupWaitingArea(CustomerInfo customerInfo, CafeCounters.Delta delta) {
+        // no filtering for non-repurposed items, that only applies to the brewing and tray areas
+        List<Order.OrderItem> removedItems = waitingArea.removeCustomer(customerInfo);
 
-        return repurposeMap;
+        if (!removedItems.isEmpty()) {
+            int teas = Order.countItemsByType(removedItems, true);
+            int coffees = Order.countItemsByType(removedItems, false);
+            delta.waiting(-teas, -coffees);
+        }
     }
 
-    private static void repurposeItems(Map<Order, List<Order.OrderItem>> repurposeMap) {
-        if (repurposeMap.isEmpty()) {
-            return;
+    private static void cleanupBrewingArea(CustomerInfo customerInfo, CafeCounters.Delta delta) {
+        // drinks handed to other customers now belong to their orders, so only this customer's remain
+        List<Order.OrderItem> itemsToRemove = brewingArea.stream()
+                .filter(item -> item.getOrder().getCustomer().equals(customerInfo))
+                .toList();
+
+        if (!itemsToRemove.isEmpty()) {
+            int teas = Order.countItemsByType(itemsToRemove, true);
+            int coffees = Order.countItemsByType(itemsToRemove, false);
+
+            brewingArea.removeIf(item -> item.getOrder().getCustomer().equals(customerInfo));
+            delta.brewing(-teas, -coffees);
+
+            // cancel the pending completions and release their slots for waiting teas or coffees to take
+            for (Order.OrderItem item : itemsToRemove) {
+                TaskScheduler.Cancellable timer = brewingTimers.remove(item);
+                if (timer != null) {
+                    timer.cancel();
+                    releaseSlot(item.isTea());
+                }
+            }
+            // the drinks starting in the freed slots are part of the departure's transition
+            if (teas > 0) startBrewing(true, delta);
+            if (coffees > 0) startBrewing(false, delta);
         }
+    }
 
-        // simpler version of acquireLocks, to prevent deadlocks in fine grained concurrency
-        waitingLock.lock();
-        brewingLock.lock();
-        trayLock.lock();
+    private static void cleanupTrayArea(CustomerInfo customerInfo, CafeCounters.Delta delta) {
+        // repurposed drinks were already moved onto their new customer's tray
+        List<Order.OrderItem> items = trayArea.remove(customerInfo);
+        if (items != null && !items.isEmpty()) {
+            int teas = Order.countItemsByType(items, true);
+            int coffees = Order.countItemsByType(items, false);
+            delta.tray(-teas, -coffees);
+        }
+    }
 
-        try {
-            for (Map.Entry<Order, List<Order.OrderItem>> entry : repurposeMap.entrySet()) {
-                Order receivingOrder = entry.getKey();
-                List<Order.OrderItem> itemsToRepurpose = entry.getValue();
-
-                for (Order.OrderItem item : itemsToRepurpose) {
-                    CustomerInfo originalCustomer = item.getOrder().getCustomer();
-
-                    // check if a current customer can accept an item to repurpose
-                    if (receivingOrder.canRepurposeItem(item)) {
-                        // remove the waiting area item from the current customer's order for reassignment to the brewing/tray item
-                        boolean removedWaiting = waitingArea.removeIf(waitingItem ->
-                                waitingItem.getOrder().equals(receivingOrder) &&
-                                        waitingItem.isTea() == item.isTea() &&
-                                        !waitingItem.isCancelled());
-
-                        if (removedWaiting) {
-                            updateWaiting(item.isTea() ? -1 : 0, item.isTea() ? 0 : -1);
-                        }
+    // hands each of a departing customer's brewing and tray drinks to the longest waiting drink of the same
+    // type, taken from the head of that type's waiting queue, so matching costs nothing per waiting customer
+    // and the customer who has waited longest is served first; drinks already on the tray go first, then
+    // brewing drinks in the order they started, so the longest wait is met by the soonest ready drink.
+    // called after the customer's own waiting drinks were removed
+    private static void repurposeItems(CustomerInfo departingCustomer, CafeCounters.Delta delta) {
 
-                        // reassign ownership of the item to the customer currently in the cafe
-                        receivingOrder.repurposeItem(item);
+        List<Order.OrderItem> availableItems = new ArrayList<>();
+        List<Order.OrderItem> trayItems = trayArea.get(departingCustomer);
+        if (trayItems != null) {
+            availableItems.addAll(trayItems);
+        }
+        for (Order.OrderItem item : brewingArea) {
+            if (item.getOrder().getCustomer().equals(departingCustomer)) {
+                availableItems.add(item);
+            }
+        }
 
-                        // update brewing item with new customer reference to repurpose it
-                        if (item.isBrewing()) {
-                            int index = brewingArea.indexOf(item);
-                            if (index != -1) {
-                                brewingArea.set(index, item);
-                            }
-                        }
+        for (Order.OrderItem item : availableItems) {
+            Order.OrderItem replaced = waitingArea.pollUncancelled(item.isTea());
+            if (replaced == null) {
+                // nobody is waiting for this type, so the drink is cancelled with the rest of the order
+                continue;
+            }
+            delta.waiting(item.isTea() ? -1 : 0, item.isTea() ? 0 : -1);
+
+            // reassign ownership of the item to the customer whose waiting drink it replaces
+            Order receivingOrder = replaced.getOrder();
+            boolean completed = receivingOrder.repurposeItem(item, replaced);
+            if (journal != null) journal.itemRepurposed(item, replaced);
+            metrics.repurposedItems.incrementAndGet();
+
+            // a drink already on the tray moves onto the receiving customer's tray
+            if (item.isOnTray()) {
+                trayItems.removeIf(trayItem -> trayItem == item);
+                trayArea.computeIfAbsent(receivingOrder.getCustomer(), k -> new ArrayList<>()).add(item);
+            }
 
-                        OrderListeners.notifyOrderRepurposed(
-                                item.isTea() ? "tea" : "coffee",
-                                originalCustomer.getCustomerName(),
-                                item.isBrewing() ? "currently brewing" : "in tray",
-                                receivingOrder.getCustomer().getCustomerName(),
-                                item.isBrewing() ? "order" : "tray"
-                        );
-                    }
-                }
+            String itemType = item.isTea() ? "tea" : "coffee";
+            String fromLocation = item.isBrewing() ? "currently brewing" : "in tray";
+            String toLocation = item.isBrewing() ? "order" : "tray";
+            OrderListeners.notifyOrderRepurposed(
+                    receivingOrder.getCustomer(),
+                    itemType,
+                    departingCustomer.getCustomerName(),
+                    fromLocation,
+                    toLocation
+            );
+            if (completed) {
+                OrderListeners.notifyOrderCompleted(receivingOrder);
             }
-        } finally {
-            trayLock.unlock();
-            brewingLock.unlock();
-            waitingLock.unlock();
         }
     }
 
-    public static void handleClientDisconnection(CustomerInfo customerInfo, Order order, AtomicInteger clientCount) {
-        if (order != null) {
-            try {
-                if (!acquireLocks()) {
-                    return;
-                }
+    public static void handleClientDisconnection(CustomerInfo customerInfo, Order order) {
+        // a departed customer is no longer notified, and is dropped from the listener registry
+        OrderListeners.unregisterListener(customerInfo);
 
-                try {
-                    // identify items that can be repurposed
-                    Map<Order, List<Order.OrderItem>> repurposeMap = findRepurposeableItems(customerInfo);
+        core.run(() -> removeCustomer(customerInfo, order));
+        awaitJournal();
+    }
 
-                    if (!repurposeMap.isEmpty()) {
-                        repurposeItems(repurposeMap);
-                    }
+    // applied as one event, so a departure can never be skipped or interleaved with other changes
+    private static void removeCustomer(CustomerInfo customerInfo, Order order) {
+        // everything a departing customer changes is logged as a single transition
+        CafeCounters.Delta delta = new CafeCounters.Delta().customers(-1);
 
-                    // identify items that cannot be repurposed
-                    order.getItems().stream()
-                            .filter(item -> !item.isRepurposed())
-                            .forEach(item -> item.setCancelled(true));
+        if (order != null) {
+            cancelOrder(customerInfo, order, delta);
+        }
+        transition(delta);
+    }
 
-                    // remove all items that cannot be repurposed
-                    cleanupWaitingArea(customerInfo);
-                    cleanupBrewingArea(customerInfo);
-                    cleanupTrayArea(customerInfo);
+    // takes an order's drinks out of every area, repurposing what it can, and journals the cancellation
+    private static void cancelOrder(CustomerInfo customerInfo, Order order, CafeCounters.Delta delta) {
+        // the customer's own waiting drinks leave first, so none of them can receive a repurposed drink
+        cleanupWaitingArea(customerInfo, delta);
 
-                    setClientWaiting(-1);
+        // hand brewing and tray drinks to waiting customers, whose notifications are dispatched off this thread
+        repurposeItems(customerInfo, delta);
 
-                } finally {
-                    // opposite of acquireLocks, unlock to follow fine grained concurrency
-                    trayLock.unlock();
-                    brewingLock.unlock();
-                    waitingLock.unlock();
-                    disconnectionLock.unlock();
-                }
-            } catch (Exception ignored) {}
-        }
-        clientCount.decrementAndGet();
-        logState();
+        // every drink still owned by this order could not be repurposed
+        order.getItems().stream()
+                .filter(item -> item.getOrder() == order)
+                .forEach(item -> {
+                    item.setCancelled(true);
+                    metrics.cancelledItems.incrementAndGet();
+                });
+
+        // remove all items that were not repurposed
+        cleanupBrewingArea(customerInfo, delta);
+        cleanupTrayArea(customerInfo, delta);
+        if (journal != null) journal.orderCancelled(order);
+
+        delta.waitingCustomers(-1);
     }
 
-}
\ No newline at end of file
+}
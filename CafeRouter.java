@@ -0,0 +1,363 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import helpers.*;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// spreads customers over several baristas, each its own process with its own journal, by consistent
+// hashing of the name a customer gives. the same name always reaches the same barista while it is up,
+// so an order kept across a restart is there when its customer comes back, and adding or losing a
+// barista only moves the customers it owned. once a customer is placed, the router just copies bytes
+// both ways, so the text and binary protocols pass through untouched,
+// e.g. java CafeRouter --router-shards=localhost:8889,localhost:8890 --router-admin-port=9000
+public class CafeRouter {
+
+    private static final byte[] GREETING = ("welcome to the virtual café ☕\n\n" +
+            "please enter your name to begin:\n").getBytes(StandardCharsets.UTF_8);
+    // what a barista answers an empty name with, in either protocol, before reading the next line as a name
+    private static final byte[] EMPTY_NAME_TEXT = ("✗ name cannot be empty\n" +
+            "please enter your name to begin:\n").getBytes(StandardCharsets.UTF_8);
+    private static final byte[] EMPTY_NAME_FRAME = WireProtocol.errorFrame(WireProtocol.EMPTY_NAME, "");
+    // sent instead of the greeting when the router is full, before the customer has chosen a protocol
+    private static final byte[] FULL = "✗ error: the café is full, please try again later\n".getBytes(StandardCharsets.UTF_8);
+    private static final String NAME_PROMPT = "please enter your name";
+
+    // one barista process behind the router
+    static class Shard {
+        final String name;
+        final InetSocketAddress address;
+        // cleared by a failed health check or connection, set again by the next good health check
+        volatile boolean healthy = true;
+        // set by an operator, so new customers go elsewhere while those already here finish
+        volatile boolean draining = false;
+        final AtomicInteger sessions = new AtomicInteger(0);
+
+        Shard(String name, InetSocketAddress address) {
+            this.name = name;
+            this.address = address;
+        }
+
+        boolean isAvailable() {
+            return healthy && !draining;
+        }
+    }
+
+    private final InetSocketAddress listenAddress;
+    private final Map<String, Shard> shards = new LinkedHashMap<>();
+    private final ConsistentHashRing<Shard> ring;
+    private final int healthIntervalMillis;
+    private final int healthTimeoutMillis;
+    private final InetSocketAddress adminAddress;
+    // each session holds two threads, which are platform threads before java 21, so only so many are let in
+    private final int maxSessions;
+    private final AtomicInteger openSessions = new AtomicInteger(0);
+    private final Executor sessionExecutor = SessionExecutors.perTaskExecutor(SessionExecutors.virtualThreadsAvailable());
+
+    CafeRouter(CafeConfig config) {
+        this.listenAddress = config.listenAddress();
+        String shardList = config.stringValue("router.shards", "");
+        for (String entry : shardList.split(",")) {
+            String shard = entry.trim();
+            if (shard.isEmpty()) {
+                continue;
+            }
+            int colon = shard.lastIndexOf(':');
+            try {
+                int port = Integer.parseInt(shard.substring(colon + 1));
+                if (colon <= 0 || port < 1 || port > 65535) {
+                    throw new NumberFormatException();
+                }
+                shards.put(shard, new Shard(shard, InetSocketAddress.createUnresolved(shard.substring(0, colon), port)));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("router.shards entries must be host:port, not '" + shard + "'");
+            }
+        }
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("router.shards must list at least one host:port");
+        }
+        this.ring = new ConsistentHashRing<>(shards, config.intValue("router.points", 128, 1));
+        this.healthIntervalMillis = config.intValue("router.health.interval.ms", 1000, 1);
+        this.healthTimeoutMillis = config.intValue("router.health.timeout.ms", 500, 1);
+        this.maxSessions = config.intValue("router.max.sessions", 1000, 1);
+
+        int adminPort = config.intValue("router.admin.port", 0, 0);
+        String adminHost = config.stringValue("router.admin.host", "localhost");
+        this.adminAddress = adminPort == 0 ? null :
+                adminHost.isEmpty() ? new InetSocketAddress(adminPort) : new InetSocketAddress(adminHost, adminPort);
+    }
+
+    void run() throws IOException {
+        Map<Shard, Double> shares = ring.ownership();
+        System.out.println("café router listening on: " + listenAddress + ", at most " + maxSessions + " customers at once");
+        for (Shard shard : shards.values()) {
+            System.out.println(String.format("shard %s owns %.1f%% of names", shard.name, 100 * shares.get(shard)));
+        }
+
+        startHealthChecks();
+        if (adminAddress != null) {
+            startAdmin();
+            System.out.println("admin: http://" + adminAddress.getHostString() + ":" + adminAddress.getPort() + "/shards");
+        }
+
+        try (ServerSocket serverSocket = new ServerSocket()) {
+            serverSocket.bind(listenAddress);
+            while (true) {
+                Socket customer = serverSocket.accept();
+                if (openSessions.incrementAndGet() > maxSessions) {
+                    openSessions.decrementAndGet();
+                    refuse(customer);
+                    continue;
+                }
+                sessionExecutor.execute(() -> {
+                    try {
+                        route(customer);
+                    } finally {
+                        openSessions.decrementAndGet();
+                    }
+                });
+            }
+        }
+    }
+
+    // a refusal is a few bytes that fit in any socket buffer, so writing it never holds up the accept loop
+    private static void refuse(Socket customer) {
+        try (customer) {
+            customer.getOutputStream().write(FULL);
+        } catch (IOException ignored) {
+        }
+    }
+
+    // greets the customer as a barista would, places them by the name they answer with, then joins them up
+    private void route(Socket customer) {
+        try (customer) {
+            customer.setTcpNoDelay(true);
+            InputStream fromCustomer = customer.getInputStream();
+            OutputStream toCustomer = customer.getOutputStream();
+            toCustomer.write(GREETING);
+            toCustomer.flush();
+
+            // read unbuffered, so frames pipelined after a binary handshake stay in the stream for the barista;
+            // an empty name is refused here as the barista would, so it is never hashed onto a shard
+            String nameLine;
+            String name;
+            while (true) {
+                nameLine = WireProtocol.readLine(fromCustomer);
+                if (nameLine == null) {
+                    return;
+                }
+                boolean binary = nameLine.startsWith(WireProtocol.HANDSHAKE);
+                name = (binary ? nameLine.substring(WireProtocol.HANDSHAKE.length()) : nameLine).trim();
+                if (!name.isEmpty()) {
+                    break;
+                }
+                toCustomer.write(binary ? EMPTY_NAME_FRAME : EMPTY_NAME_TEXT);
+                toCustomer.flush();
+            }
+
+            Socket connected = null;
+            Shard shard = null;
+            // a barista that refuses the connection or never greets it is taken off the ring, so the next try
+            // lands elsewhere
+            for (int attempt = 0; attempt < shards.size() && connected == null; attempt++) {
+                shard = ring.nodeFor(name, Shard::isAvailable);
+                if (shard == null) {
+                    break;
+                }
+                connected = connect(shard);
+            }
+            if (connected == null) {
+                byte[] refusal = nameLine.startsWith(WireProtocol.HANDSHAKE) ?
+                        WireProtocol.errorFrame(WireProtocol.ORDER_REFUSED, "no barista is available") :
+                        "✗ error: no barista is available\n".getBytes(StandardCharsets.UTF_8);
+                toCustomer.write(refusal);
+                toCustomer.flush();
+                return;
+            }
+
+            shard.sessions.incrementAndGet();
+            try (Socket barista = connected) {
+                InputStream fromBarista = barista.getInputStream();
+                OutputStream toBarista = barista.getOutputStream();
+                toBarista.write((nameLine + "\n").getBytes(StandardCharsets.UTF_8));
+                toBarista.flush();
+
+                // replies flow on a task of their own; whichever side finishes first closes both
+                sessionExecutor.execute(() -> pump(fromBarista, toCustomer, customer, barista));
+                pump(fromCustomer, toBarista, customer, barista);
+            } finally {
+                shard.sessions.decrementAndGet();
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    // a connection to the barista that has read past its greeting, since the customer was already greeted,
+    // or null once the barista is marked down for refusing the connection or not greeting it in time
+    private Socket connect(Shard shard) {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(resolve(shard), healthTimeoutMillis);
+            socket.setSoTimeout(healthTimeoutMillis);
+            InputStream in = socket.getInputStream();
+            String line;
+            do {
+                line = WireProtocol.readLine(in);
+            } while (line != null && !line.startsWith(NAME_PROMPT));
+            if (line == null) {
+                throw new IOException("closed before asking for a name");
+            }
+            // the session itself may stay quiet for as long as the customer likes
+            socket.setSoTimeout(0);
+            return socket;
+        } catch (IOException e) {
+            markHealthy(shard, false, e.getMessage());
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            return null;
+        }
+    }
+
+    private static void pump(InputStream from, OutputStream to, Socket customer, Socket barista) {
+        try {
+            from.transferTo(to);
+        } catch (IOException ignored) {
+        } finally {
+            try {
+                customer.close();
+                barista.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // resolved on every use, so a barista that moves to a new address is followed
+    private static InetSocketAddress resolve(Shard shard) {
+        return new InetSocketAddress(shard.address.getHostString(), shard.address.getPort());
+    }
+
+    private void startHealthChecks() {
+        ScheduledExecutorService checker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "router-health");
+            thread.setDaemon(true);
+            return thread;
+        });
+        checker.scheduleWithFixedDelay(() -> shards.values().forEach(this::check),
+                0, healthIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // a barista is up when it accepts a connection and greets it in time; the probe leaves without a name,
+    // so the barista never counts it as a customer
+    private void check(Shard shard) {
+        try (Socket probe = new Socket()) {
+            probe.connect(resolve(shard), healthTimeoutMillis);
+            probe.setSoTimeout(healthTimeoutMillis);
+            String greeting = WireProtocol.readLine(probe.getInputStream());
+            if (greeting == null || !greeting.startsWith("welcome")) {
+                markHealthy(shard, false, "unexpected greeting");
+                return;
+            }
+            markHealthy(shard, true, null);
+        } catch (IOException e) {
+            markHealthy(shard, false, e.getMessage());
+        }
+    }
+
+    private static void markHealthy(Shard shard, boolean healthy, String reason) {
+        if (shard.healthy != healthy) {
+            shard.healthy = healthy;
+            System.out.println("shard " + shard.name + (healthy ? " is up" : " is down: " + reason));
+        }
+    }
+
+    // GET /shards lists every barista, POST /shards/<host:port>/drain or /undrain moves new customers off or back
+    private void startAdmin() throws IOException {
+        HttpServer server = HttpServer.create(adminAddress, 0);
+        server.createContext("/shards", this::handleAdmin);
+        server.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "router-admin");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+    }
+
+    private void handleAdmin(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String method = exchange.getRequestMethod();
+            String[] path = exchange.getRequestURI().getPath().split("/");
+
+            if (path.length == 2) {
+                if (!method.equals("GET")) {
+                    respond(exchange, 405, "GET", null);
+                    return;
+                }
+                respond(exchange, 200, null, describeShards());
+                return;
+            }
+
+            Shard shard = path.length == 4 ? shards.get(path[2]) : null;
+            if (shard == null || !(path[3].equals("drain") || path[3].equals("undrain"))) {
+                respond(exchange, 404, null, "no such shard or action\n");
+                return;
+            }
+            if (!method.equals("POST")) {
+                respond(exchange, 405, "POST", null);
+                return;
+            }
+            shard.draining = path[3].equals("drain");
+            System.out.println("shard " + shard.name + (shard.draining ? " is draining" : " is accepting customers"));
+            respond(exchange, 200, null, describeShards());
+        }
+    }
+
+    private String describeShards() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%d of at most %d sessions open%n", openSessions.get(), maxSessions));
+        for (Shard shard : shards.values()) {
+            report.append(String.format("%s %s %s %d sessions%n", shard.name, shard.healthy ? "up" : "down",
+                    shard.draining ? "draining" : "accepting", shard.sessions.get()));
+        }
+        return report.toString();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String allow, String text) throws IOException {
+        if (allow != null) {
+            exchange.getResponseHeaders().set("Allow", allow);
+        }
+        if (text == null) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        CafeRouter router;
+        try {
+            router = new CafeRouter(CafeConfig.load(args));
+        } catch (IllegalArgumentException e) {
+            System.err.println("error: " + e.getMessage());
+            return;
+        }
+        router.run();
+    }
+}
@@ -0,0 +1,239 @@
+import helpers.*;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+// replays a synthetic day of customers through the real Barista logic on virtual time, so a capacity
+// change can be compared in seconds, e.g. java -cp ".:gson.jar" CafeSimulation --tea-slots=3 --sim-hours=10
+public class CafeSimulation {
+
+    private static final long MINUTE = 60_000;
+    private static final long HOUR = 60 * MINUTE;
+
+    private final DiscreteEventScheduler scheduler;
+    private final Random random;
+
+    private final double hours;
+    private final double arrivalsPerHour;
+    private final int maxDrinks;
+    private final double extendProbability;
+    private final double leaveProbability;
+    private final long collectDelayMillis;
+    private final long patienceMillis;
+
+    private int arrivals = 0;
+    private int collected = 0;
+    private int leftEarly = 0;
+    private int drinksOrdered = 0;
+    private int repurposed = 0;
+    private final List<Long> readyTimes = new ArrayList<>();
+
+    private int samples = 0;
+    private int peakWaitingDrinks = 0;
+    private long waitingDrinkTotal = 0;
+    private long brewingDrinkTotal = 0;
+
+    // one simulated customer, following the same steps a CustomerSession would take for its commands
+    private class SimulatedCustomer implements OrderListeners.OrderListener {
+        final CustomerInfo info;
+        final long arrivedAt;
+        Order order;
+        boolean gone = false;
+
+        SimulatedCustomer(int number) {
+            this.info = new CustomerInfo("customer-" + number);
+            this.arrivedAt = scheduler.millis();
+        }
+
+        void arrive() {
+            Barista.registerCustomer(info.getCustomerName());
+            OrderListeners.registerListener(info, this);
+
+            int teas = random.nextInt(maxDrinks + 1);
+            int coffees = teas == 0 ? 1 + random.nextInt(maxDrinks) : random.nextInt(maxDrinks + 1);
+            order = new Order(info, teas, coffees);
+            drinksOrdered += teas + coffees;
+            Barista.addToWaitingArea(order, order.getItems(), true);
+
+            if (random.nextDouble() < extendProbability) {
+                scheduler.schedule(this::extendOrder, exponential(patienceMillis / 4));
+            }
+            if (random.nextDouble() < leaveProbability) {
+                scheduler.schedule(this::leave, exponential(patienceMillis));
+            }
+        }
+
+        void extendOrder() {
+            if (gone || order == null || order.isReadyForCollection()) return;
+
+            boolean isTea = random.nextBoolean();
+            Barista.extendOrder(order, isTea ? 1 : 0, isTea ? 0 : 1);
+            drinksOrdered++;
+        }
+
+        void collect() {
+            if (gone || order == null) return;
+
+            if (order.isReadyForCollection() && Barista.collectOrder(order)) {
+                readyTimes.add(scheduler.millis() - arrivedAt);
+                collected++;
+                order = null;
+                depart();
+            } else {
+                // an order that can no longer be collected is abandoned like a customer walking out
+                leave();
+            }
+        }
+
+        void leave() {
+            if (gone) return;
+            leftEarly++;
+            depart();
+        }
+
+        private void depart() {
+            gone = true;
+            Barista.handleClientDisconnection(info, order);
+        }
+
+        @Override
+        public void onOrderCompleted(Order completed) {
+            scheduler.schedule(this::collect, exponential(collectDelayMillis));
+        }
+
+        @Override
+        public void onOrderRepurposed(String itemType, String fromCustomer, String fromLocation,
+                                      String toCustomer, String toLocation) {
+            repurposed++;
+        }
+    }
+
+    CafeSimulation(CafeConfig config, DiscreteEventScheduler scheduler) {
+        this.scheduler = scheduler;
+        this.random = new Random(config.intValue("sim.seed", 1, 0));
+        this.hours = config.doubleValue("sim.hours", 8, 0, 24 * 365);
+        this.arrivalsPerHour = config.doubleValue("sim.arrivals.per.hour", 60, 0.001, 1_000_000);
+        this.maxDrinks = config.intValue("sim.max.drinks", 3, 1);
+        this.extendProbability = config.doubleValue("sim.extend.probability", 0.1, 0, 1);
+        this.leaveProbability = config.doubleValue("sim.leave.probability", 0.05, 0, 1);
+        this.collectDelayMillis = config.intValue("sim.collect.delay.ms", 20_000, 0);
+        this.patienceMillis = config.intValue("sim.patience.ms", 120_000, 0);
+    }
+
+    // exponentially distributed delay with the given mean, for a Poisson arrival process
+    private long exponential(long meanMillis) {
+        return (long) (-Math.log(1 - random.nextDouble()) * meanMillis);
+    }
+
+    private void scheduleNextArrival(long closingTime) {
+        long next = scheduler.millis() + exponential((long) (HOUR / arrivalsPerHour));
+        if (next >= closingTime) return;
+
+        scheduler.schedule(() -> {
+            new SimulatedCustomer(++arrivals).arrive();
+            scheduleNextArrival(closingTime);
+        }, next - scheduler.millis());
+    }
+
+    private void sample() {
+        CafeCounters.Snapshot state = Barista.currentState();
+        int waiting = state.waitingTeas + state.waitingCoffees;
+        samples++;
+        peakWaitingDrinks = Math.max(peakWaitingDrinks, waiting);
+        waitingDrinkTotal += waiting;
+        brewingDrinkTotal += state.brewingTeas + state.brewingCoffees;
+    }
+
+    private void scheduleSampling(long closingTime) {
+        scheduler.schedule(() -> {
+            sample();
+            if (scheduler.millis() < closingTime || scheduler.hasPendingEvents()) {
+                scheduleSampling(closingTime);
+            }
+        }, MINUTE);
+    }
+
+    void run() {
+        long closingTime = scheduler.millis() + (long) (hours * HOUR);
+        scheduleNextArrival(closingTime);
+        scheduleSampling(closingTime);
+        scheduler.runToCompletion();
+    }
+
+    String report(CafeConfig config, long startMillis, long wallMillis) {
+        Collections.sort(readyTimes);
+        long simulatedMillis = scheduler.millis() - startMillis;
+        int slots = config.teaSlots + config.coffeeSlots;
+
+        return "simulated: " + formatDuration(simulatedMillis) + " in " + wallMillis + " ms (" +
+                scheduler.getProcessedEvents() + " events)\n" +
+                "brewing slots: " + config.teaSlots + " tea, " + config.coffeeSlots + " coffee\n" +
+                "brew times: " + config.teaBrewMillis + " ms tea, " + config.coffeeBrewMillis + " ms coffee\n" +
+                "customers: " + arrivals + " arrived, " + collected + " collected, " + leftEarly + " left early, " +
+                Barista.currentState().totalCustomers + " never served\n" +
+                "drinks ordered: " + drinksOrdered + ", repurposed: " + repurposed + "\n" +
+                "arrival to collection: mean " + formatDuration(mean(readyTimes)) +
+                ", p50 " + formatDuration(percentile(readyTimes, 0.50)) +
+                ", p95 " + formatDuration(percentile(readyTimes, 0.95)) +
+                ", max " + formatDuration(percentile(readyTimes, 1.0)) + "\n" +
+                "waiting drinks: peak " + peakWaitingDrinks + ", mean " +
+                String.format("%.1f", samples == 0 ? 0.0 : (double) waitingDrinkTotal / samples) + "\n" +
+                "slot utilisation: " +
+                String.format("%.1f%%", samples == 0 ? 0.0 : 100.0 * brewingDrinkTotal / samples / slots);
+    }
+
+    private static long mean(List<Long> values) {
+        if (values.isEmpty()) return 0;
+        long total = 0;
+        for (long value : values) {
+            total += value;
+        }
+        return total / values.size();
+    }
+
+    private static long percentile(List<Long> sorted, double fraction) {
+        if (sorted.isEmpty()) return 0;
+        int index = (int) Math.ceil(fraction * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(sorted.size() - 1, index)));
+    }
+
+    private static String formatDuration(long millis) {
+        long seconds = millis / 1000;
+        if (seconds < 60) return seconds + "s";
+        if (seconds < 3600) return (seconds / 60) + "m " + (seconds % 60) + "s";
+        return (seconds / 3600) + "h " + (seconds % 3600 / 60) + "m";
+    }
+
+    public static void main(String[] args) {
+        CafeConfig config;
+        CafeSimulation simulation;
+        // the simulated day starts at opening time, so logged timestamps read like a real day
+        long start = LocalDate.now().atTime(7, 0).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        DiscreteEventScheduler scheduler = new DiscreteEventScheduler(start);
+
+        try {
+            config = CafeConfig.load(args);
+            simulation = new CafeSimulation(config, scheduler);
+        } catch (IllegalArgumentException e) {
+            System.err.println("error: " + e.getMessage());
+            return;
+        }
+
+        // state logging is off unless asked for, since a busy day produces a very long log
+        boolean logStates = config.booleanValue("sim.log");
+        Barista.configureSimulation(config, scheduler, logStates);
+
+        long wallStart = System.currentTimeMillis();
+        simulation.run();
+        long wallMillis = System.currentTimeMillis() - wallStart;
+
+        if (logStates) {
+            Barista.closeLog();
+        }
+        System.out.println(simulation.report(config, start, wallMillis));
+    }
+}
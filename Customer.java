@@ -1,67 +1,54 @@
 import helpers.*;
-import java.net.Socket;
-import java.io.*;
+import java.net.InetSocketAddress;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
 
 
+// the interactive customer, turning terminal input into CafeClient commands and printing their replies
 public class Customer {
     private static final AtomicBoolean isRunning = new AtomicBoolean(true);
     private static String customerName;
 
-    private static Socket socket;
-    private static PrintWriter out;
+    private static CafeClient.IoGroup ioGroup;
+    private static CafeClient client;
+    private static final CommandParser.ParsedCommand parsed = new CommandParser.ParsedCommand();
 
-    private static Thread messageThread;
-    private static ServerMessageHandler messageHandler;
-
-    // handling asynchronous messages from the server
-    private static class ServerMessageHandler implements Runnable {
-        private final BufferedReader in;
-
-        private volatile boolean running = true;
+    // notices from the server, arriving while the customer types
+    private static final CafeClient.Listener notices = new CafeClient.Listener() {
+        @Override
+        public void onOrderCompleted(int teas, int coffees) {
+            System.out.println("order for " + customerName + " (" + Order.formatItems(teas, coffees) + ")" +
+                    " completed. please collect by typing 'collect'!");
+        }
 
-        public ServerMessageHandler(BufferedReader in) {
-            this.in = in;
+        @Override
+        public void onItemRepurposed(boolean isTea, boolean fromTray, String fromCustomer) {
+            System.out.println(String.format("1 %s %s for %s has been transferred to %s's %s",
+                    isTea ? "tea" : "coffee", fromTray ? "in tray" : "currently brewing", fromCustomer,
+                    customerName, fromTray ? "tray" : "order"));
         }
 
-        public void stop() {
-            running = false;
+        @Override
+        public void onOrderRestored(int teas, int coffees) {
+            System.out.println("✓ welcome back, your order was kept for you: " + customerName + ": " +
+                    Order.formatItems(teas, coffees));
         }
 
         @Override
-        public void run() {
-            try {
-                while (running) {
-                    String serverMessage = in.readLine();
-
-                    if (serverMessage == null) {
-                        System.err.println("error: lost connection to café server");
-                        close();
-                        break;
-                    }
-
-                    if (serverMessage.equals("exit")) {
-                        break;
-                    }
-
-                    // build and print multi-line messages, including order status responses
-                    StringBuilder fullMessage = new StringBuilder(serverMessage);
-                    while (in.ready()) {
-                        String additionalLine = in.readLine();
-                        if (additionalLine == null) break;
-                        fullMessage.append("\n").append(additionalLine);
-                    }
-                    System.out.println(fullMessage);
-                }
-            } catch (IOException e) {
-                if (running) {
-                    System.err.println("error reading from server: " + e.getMessage());
-                    close();
-                }
+        public void onDisconnected(Throwable cause) {
+            // a connection that never opened is reported by main instead
+            if (cause != null && isRunning.get() && client != null) {
+                System.err.println("error: lost connection to café server");
+                close();
             }
         }
-    }
+    };
 
     // control interrupts of Ctrl+C to ensure smooth disconnection and item repurposing
     private static void setupShutdownHook() {
@@ -71,52 +58,98 @@ public class Customer {
         }));
     }
 
-    // notifies server of exit and closes sock connection
+    // notifies server of exit and closes the connection
     private static void close() {
 
         // prevent new inputs being processed
         isRunning.set(false);
 
-        // inform server of disconnection if still connected
-        if (out != null && socket != null && !socket.isClosed()) {
-            out.println("exit");
+        // leave politely if still connected, giving the server a moment to answer
+        if (client != null && !client.isClosed()) {
+            try {
+                client.exit().get(1, TimeUnit.SECONDS);
+            } catch (InterruptedException | ExecutionException | TimeoutException ignored) {
+            }
+            client.close();
         }
-
-        // stop processing server messages
-        if (messageHandler != null) {
-            messageHandler.stop();
+        if (ioGroup != null) {
+            ioGroup.close();
         }
+        System.out.println("thank you for visiting our café " + customerName + "! ☕");
+    }
 
-        // close thread and provide time to prevent abrupt exit, or immediately interrupt if the timeout has passed
-        if (messageThread != null) {
-            try {
-                messageThread.join(1000);
-            } catch (InterruptedException ignored) {
-            }
-            if (messageThread.isAlive()) {
-                messageThread.interrupt();
+    // display welcome message and prompt user for name input
+    private static boolean connectCustomer(Scanner userInput) throws Exception {
+        System.out.println(client.getGreeting());
+
+        customerName = userInput.nextLine();
+        try {
+            // printed as the registration arrives, so it comes before any notice about a restored order
+            client.register(customerName).thenAccept(name -> System.out.println("\nhello " + name + "! you can\n" +
+                    "- place an order (e.g., 'order 2 teas and 1 coffee')\n" +
+                    "- check status ('order status')\n" +
+                    "- collect your order ('collect')\n" +
+                    "- leave the café ('exit')")).get(10, TimeUnit.SECONDS);
+            return true;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof CafeClient.RefusedException refused) {
+                System.out.println(formatError(refused));
+                return false;
             }
+            throw e;
         }
+    }
 
-        if (socket != null) {
-            try {
-                socket.close();
-            } catch (IOException ignored) {
+    // sends one command without waiting for its reply; returns true once the customer leaves
+    private static boolean sendCommand(String input) {
+        CommandParser.parse(input, parsed);
+        switch (parsed.getType()) {
+            case ORDER -> print(client.order(parsed.getTeas(), parsed.getCoffees()), Customer::formatOrder);
+            case BATCH -> print(client.batch(parsed.getTeas(), parsed.getCoffees()), Customer::formatOrder);
+            case STATUS -> print(client.status(), counts -> counts.format(customerName));
+            case COLLECT -> print(client.collect(), done -> "✓ order collected for " + customerName);
+            case STATS -> print(client.stats(), stats -> stats);
+            case EXIT -> {
+                return true;
             }
+            // lines that are not commands are answered here, without a round trip
+            case INVALID_ORDER -> System.out.println("✗ invalid order format");
+            default -> System.out.println("✗ invalid command");
         }
-        System.out.println("thank you for visiting our café " + customerName + "! ☕");
+        return false;
     }
 
-    // display welcome message and prompt user for name input
-    private static void connectCustomer(BufferedReader in, Scanner userInput) throws IOException {
-        for (int i = 0; i < 3; i++) {
-            System.out.println(in.readLine());
-        }
+    private static <T> void print(CompletableFuture<T> reply, Function<T, String> format) {
+        reply.whenComplete((result, error) -> {
+            Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+            if (cause == null) {
+                System.out.println(format.apply(result));
+            } else if (cause instanceof CafeClient.RefusedException refused) {
+                System.out.println(formatError(refused));
+            }
+            // a lost connection is reported once, by the listener
+        });
+    }
 
-        // :: Send customer name and get confirmation
-        customerName = userInput.nextLine();
-        out.println(customerName);
-        System.out.println(in.readLine());
+    private static String formatOrder(CafeClient.OrderAck ack) {
+        String items = Order.formatItems(ack.teas, ack.coffees);
+        return ack.updated ?
+                "✓ updated order for " + customerName + ": " + customerName + ": " + items :
+                "✓ order received for " + customerName + ": " + items;
+    }
+
+    // the same wording the server uses for its text replies
+    private static String formatError(CafeClient.RefusedException refused) {
+        return switch (refused.code) {
+            case WireProtocol.INVALID_COMMAND -> "✗ invalid command";
+            case WireProtocol.INVALID_ORDER -> "✗ invalid order format";
+            case WireProtocol.NO_ORDER -> "✗ no order found for " + customerName;
+            case WireProtocol.NOT_READY -> "✗ order not ready for " + customerName + " yet";
+            case WireProtocol.COLLECT_FIRST -> "✗ please collect your completed order before placing a new one";
+            case WireProtocol.ORDER_REFUSED -> "✗ error: " + refused.detail;
+            case WireProtocol.EMPTY_NAME -> "✗ name cannot be empty";
+            default -> "✗ error " + refused.code + ": " + refused.detail;
+        };
     }
 
     public static void main(String[] args) {
@@ -124,31 +157,34 @@ public class Customer {
         setupShutdownHook();
 
         try {
-            // create new socket for customer
-            socket = new Socket("localhost", 8888);
+            // the server address can be given as arguments, e.g. java Customer localhost 9000
+            String host = args.length > 0 ? args[0] : "localhost";
+            int port = args.length > 1 ? Integer.parseInt(args[1]) : 8888;
             Scanner userInput = new Scanner(System.in);
-            out = new PrintWriter(socket.getOutputStream(), true);
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
 
-            connectCustomer(in, userInput);
+            ioGroup = new CafeClient.IoGroup(1);
+            client = CafeClient.connect(ioGroup, new InetSocketAddress(host, port), notices).get(10, TimeUnit.SECONDS);
 
-            messageHandler = new ServerMessageHandler(in);
-            messageThread = new Thread(messageHandler);
-            messageThread.start();
+            if (!connectCustomer(userInput)) {
+                return;
+            }
 
             // keep processing until the user exists or a client side error occurs
-            String input;
             while (isRunning.get()) {
-                input = userInput.nextLine();
-                out.println(input);
-                if (!isRunning.get() || input.equals("exit")) {
+                String input = userInput.nextLine();
+                if (!isRunning.get() || sendCommand(input)) {
                     break;
                 }
             }
-        } catch (IOException e) {
-            System.err.println("error: " + e.getMessage());
+        } catch (Exception e) {
+            // e.g. a refused connection, reported by its root cause
+            Throwable cause = e;
+            while (cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            System.err.println("error: " + cause.getMessage());
         } finally {
             close();
         }
     }
-}
\ No newline at end of file
+}
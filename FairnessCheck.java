@@ -0,0 +1,236 @@
+import helpers.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// replays a few fixed scenarios through the real Barista logic on virtual time and checks that each drink
+// type is served first come first served, that a big order never holds up a small one beyond its place in
+// line, and that a departing customer's drinks go to whoever has waited longest. runs with the default
+// slots and brew times whatever cafe.properties says, and exits with 1 if any check fails,
+// e.g. java -cp ".:gson.jar" FairnessCheck
+public class FairnessCheck {
+
+    private static final long SECOND = 1000;
+
+    private final CafeConfig config;
+    private final DiscreteEventScheduler scheduler;
+    private final List<String> failures = new ArrayList<>();
+    private int checks = 0;
+
+    // a customer that collects and leaves as soon as its order is ready, unless told to leave it on the tray
+    private class Guest implements OrderListeners.OrderListener {
+        final CustomerInfo info;
+        final boolean collects;
+        Order order;
+        long arrivedAt = -1;
+        long readyAt = -1;
+        final List<String> handedDrinks = new ArrayList<>();
+
+        Guest(String name, boolean collects) {
+            this.info = new CustomerInfo(name);
+            this.collects = collects;
+        }
+
+        void order(int teas, int coffees) {
+            arrivedAt = scheduler.millis();
+            Barista.registerCustomer(info.getCustomerName());
+            OrderListeners.registerListener(info, this);
+            order = new Order(info, teas, coffees);
+            Barista.addToWaitingArea(order, order.getItems(), true);
+        }
+
+        void extend(int teas, int coffees) {
+            Barista.extendOrder(order, teas, coffees);
+        }
+
+        void collect() {
+            if (Barista.collectOrder(order)) {
+                order = null;
+            }
+            leave();
+        }
+
+        void leave() {
+            Barista.handleClientDisconnection(info, order);
+            order = null;
+        }
+
+        long waited() {
+            return readyAt - arrivedAt;
+        }
+
+        @Override
+        public void onOrderCompleted(Order completed) {
+            readyAt = scheduler.millis();
+            if (collects) {
+                scheduler.schedule(this::collect, 0);
+            }
+        }
+
+        @Override
+        public void onOrderRepurposed(String itemType, String fromCustomer, String fromLocation,
+                                      String toCustomer, String toLocation) {
+            handedDrinks.add(itemType + " from " + fromCustomer);
+        }
+    }
+
+    FairnessCheck(CafeConfig config, DiscreteEventScheduler scheduler) {
+        this.config = config;
+        this.scheduler = scheduler;
+    }
+
+    // runs a step at a time after the scenario started
+    private void at(long start, long offsetMillis, Runnable step) {
+        scheduler.schedule(step, start + offsetMillis - scheduler.millis());
+    }
+
+    private void expect(boolean holds, String scenario, String message) {
+        checks++;
+        if (!holds) {
+            failures.add(scenario + ": " + message);
+        }
+    }
+
+    // single drink orders a second apart, teas and coffees interleaved and more than the slots can take at
+    // once, are each ready after every earlier order of the same type
+    private void arrivalOrder() {
+        String scenario = "arrival order";
+        long start = scheduler.millis();
+        boolean[] teaOrders = {true, false, true, true, false, false, true, false, true, true, false, false};
+        List<Guest> teas = new ArrayList<>();
+        List<Guest> coffees = new ArrayList<>();
+
+        for (int i = 0; i < teaOrders.length; i++) {
+            boolean isTea = teaOrders[i];
+            Guest guest = new Guest((isTea ? "tea-" : "coffee-") + i, true);
+            (isTea ? teas : coffees).add(guest);
+            at(start, i * SECOND, () -> guest.order(isTea ? 1 : 0, isTea ? 0 : 1));
+        }
+        scheduler.runToCompletion();
+
+        expectArrivalOrder(scenario, teas);
+        expectArrivalOrder(scenario, coffees);
+    }
+
+    private void expectArrivalOrder(String scenario, List<Guest> guests) {
+        for (int i = 1; i < guests.size(); i++) {
+            Guest earlier = guests.get(i - 1);
+            Guest later = guests.get(i);
+            expect(later.readyAt > earlier.readyAt, scenario, later.info.getCustomerName() + " was ready at " +
+                    later.readyAt + " ms, not after " + earlier.info.getCustomerName() + " at " + earlier.readyAt + " ms");
+        }
+    }
+
+    // a big tea order arrives first; a coffee is not held up by it at all, a tea waits only for the teas
+    // ahead of it, and teas the big order adds later queue behind that tea
+    private void bigOrder() {
+        String scenario = "big order";
+        long start = scheduler.millis();
+        int bigTeas = 3 * config.teaSlots;
+        Guest big = new Guest("big", true);
+        Guest coffee = new Guest("small-coffee", true);
+        Guest tea = new Guest("small-tea", true);
+
+        at(start, 0, () -> big.order(bigTeas, 0));
+        at(start, SECOND, () -> coffee.order(0, 1));
+        at(start, 2 * SECOND, () -> tea.order(1, 0));
+        at(start, 3 * SECOND, () -> big.extend(config.teaSlots, 0));
+        scheduler.runToCompletion();
+
+        expect(coffee.waited() == config.coffeeBrewMillis, scenario,
+                "the coffee waited " + coffee.waited() + " ms instead of one brew");
+        // the big order's teas take every slot for three rounds, and the small tea starts in the fourth
+        long teaReady = 4L * config.teaBrewMillis;
+        expect(tea.readyAt - start == teaReady, scenario,
+                "the tea was ready " + (tea.readyAt - start) + " ms after opening instead of " + teaReady + " ms");
+        expect(big.readyAt > tea.readyAt, scenario, "the big order's added teas were served before the small tea");
+    }
+
+    // with every tea slot taken, two customers queue for a tea; a customer leaving with a brewing tea hands it
+    // to the first of them, and the second waits for the next free slot
+    private void brewingHandOver() {
+        String scenario = "brewing hand over";
+        long start = scheduler.millis();
+        Guest leaving = new Guest("leaves-brewing", true);
+        Guest busy = new Guest("busy", true);
+        Guest first = new Guest("first-waiting", true);
+        Guest second = new Guest("second-waiting", true);
+
+        at(start, 0, () -> leaving.order(1, 0));
+        at(start, 0, () -> busy.order(config.teaSlots - 1, 0));
+        at(start, SECOND, () -> first.order(1, 0));
+        at(start, 2 * SECOND, () -> second.order(1, 0));
+        at(start, 10 * SECOND, leaving::leave);
+        scheduler.runToCompletion();
+
+        expect(first.handedDrinks.equals(List.of("tea from leaves-brewing")), scenario,
+                "the first waiting customer was handed " + first.handedDrinks);
+        expect(second.handedDrinks.isEmpty(), scenario, "the second waiting customer was handed " + second.handedDrinks);
+        expect(first.readyAt - start == config.teaBrewMillis, scenario,
+                "the first waiting customer was ready " + (first.readyAt - start) + " ms after opening");
+        expect(second.readyAt - start == 2L * config.teaBrewMillis, scenario,
+                "the second waiting customer was ready " + (second.readyAt - start) + " ms after opening");
+    }
+
+    // a tea left on the tray goes to the longest waiting tea ahead of the brewing ones
+    private void trayHandOver() {
+        String scenario = "tray hand over";
+        long start = scheduler.millis();
+        Guest leaving = new Guest("leaves-tray", false);
+        Guest busy = new Guest("busy", true);
+        Guest first = new Guest("first-waiting", true);
+        Guest second = new Guest("second-waiting", true);
+
+        long full = config.teaBrewMillis + SECOND;
+        at(start, 0, () -> leaving.order(1, 0));
+        at(start, full, () -> busy.order(config.teaSlots, 0));
+        at(start, full + SECOND, () -> first.order(1, 0));
+        at(start, full + 2 * SECOND, () -> second.order(1, 0));
+        at(start, full + 10 * SECOND, leaving::leave);
+        scheduler.runToCompletion();
+
+        expect(first.handedDrinks.equals(List.of("tea from leaves-tray")), scenario,
+                "the first waiting customer was handed " + first.handedDrinks);
+        expect(second.handedDrinks.isEmpty(), scenario, "the second waiting customer was handed " + second.handedDrinks);
+        expect(first.readyAt - start == full + 10 * SECOND, scenario,
+                "the first waiting customer was not ready as soon as the tea was handed over");
+        expect(second.readyAt - start == full + 2L * config.teaBrewMillis, scenario,
+                "the second waiting customer was ready " + (second.readyAt - start) + " ms after opening");
+    }
+
+    // every scenario ends with its customers gone, so nothing may be left in any area
+    private void expectEmpty(String scenario) {
+        CafeCounters.Snapshot state = Barista.currentState();
+        expect(state.totalCustomers == 0 && state.waitingCustomers == 0 &&
+                        state.waitingTeas + state.waitingCoffees + state.brewingTeas + state.brewingCoffees +
+                                state.trayTeas + state.trayCoffees == 0,
+                scenario, "the café was not empty afterwards");
+    }
+
+    boolean run() {
+        arrivalOrder();
+        expectEmpty("arrival order");
+        bigOrder();
+        expectEmpty("big order");
+        brewingHandOver();
+        expectEmpty("brewing hand over");
+        trayHandOver();
+        expectEmpty("tray hand over");
+
+        for (String failure : failures) {
+            System.out.println("FAIL " + failure);
+        }
+        System.out.println((checks - failures.size()) + "/" + checks + " fairness checks passed");
+        return failures.isEmpty();
+    }
+
+    public static void main(String[] args) {
+        CafeConfig config = CafeConfig.defaults();
+        DiscreteEventScheduler scheduler = new DiscreteEventScheduler(0);
+        Barista.configureSimulation(config, scheduler, false);
+
+        if (!new FairnessCheck(config, scheduler).run()) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,347 @@
+import helpers.*;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// headless load test over the customer line protocol, or the binary one through CafeClient, where each
+// simulated customer registers, orders, polls its status until the order is ready, collects and leaves
+// (or leaves while its drinks brew),
+// e.g. java -cp ".:gson.jar" LoadGenerator --load-customers=500 --load-order="order 1 tea and 1 coffee"
+public class LoadGenerator {
+
+    private static final String CLOSED = "\u0000closed";
+
+    private final String host;
+    private final int port;
+    private final int customers;
+    private final int rounds;
+    private final String orderCommand;
+    private final long statusIntervalMillis;
+    private final double leaveProbability;
+    private final long rampMillis;
+    private final long timeoutMillis;
+    private final int seed;
+    // text drives one socket and reader per customer, binary shares a few io threads between CafeClients
+    private final boolean binary;
+    private final int ioThreads;
+    private final CommandParser.ParsedCommand binaryOrder = new CommandParser.ParsedCommand();
+
+    private final LatencyHistogram registration = new LatencyHistogram();
+    private final LatencyHistogram orderAck = new LatencyHistogram();
+    private final LatencyHistogram status = new LatencyHistogram();
+    private final LatencyHistogram collection = new LatencyHistogram();
+    private final LatencyHistogram orderToReady = new LatencyHistogram();
+
+    private final AtomicInteger commands = new AtomicInteger(0);
+    private final AtomicInteger collected = new AtomicInteger(0);
+    private final AtomicInteger leftMidBrew = new AtomicInteger(0);
+    private final AtomicInteger failed = new AtomicInteger(0);
+
+    LoadGenerator(CafeConfig config) {
+        String configuredHost = config.stringValue("host", "");
+        this.host = configuredHost.isEmpty() ? "localhost" : configuredHost;
+        this.port = config.port;
+        this.customers = config.intValue("load.customers", 100, 1);
+        this.rounds = config.intValue("load.rounds", 1, 1);
+        this.orderCommand = config.stringValue("load.order", "order 1 tea and 1 coffee");
+        this.statusIntervalMillis = config.intValue("load.status.interval.ms", 1000, 1);
+        this.leaveProbability = config.doubleValue("load.leave.probability", 0.1, 0, 1);
+        this.rampMillis = config.intValue("load.ramp.ms", 1000, 0);
+        this.timeoutMillis = config.intValue("load.timeout.ms", 300_000, 1);
+        this.seed = config.intValue("load.seed", 1, 0);
+
+        String protocol = config.stringValue("load.protocol", "text");
+        if (!protocol.equals("text") && !protocol.equals("binary")) {
+            throw new IllegalArgumentException("load.protocol must be text or binary, not " + protocol);
+        }
+        this.binary = protocol.equals("binary");
+        this.ioThreads = config.intValue("load.io.threads", Runtime.getRuntime().availableProcessors(), 1);
+        // the binary protocol sends quantities rather than the command line, so the line is parsed once here
+        if (binary && CommandParser.parse(orderCommand, binaryOrder).getType() != CommandParser.CommandType.ORDER &&
+                binaryOrder.getType() != CommandParser.CommandType.BATCH) {
+            throw new IllegalArgumentException("load.order is not an order: " + orderCommand);
+        }
+    }
+
+    // one customer's connection, with a reader thread queueing every line the server sends
+    private class Connection implements Closeable {
+        final Socket socket;
+        final PrintWriter out;
+        final BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+        long readyAt = 0;
+
+        Connection(Executor readers) throws IOException {
+            socket = new Socket();
+            socket.connect(new InetSocketAddress(host, port), 10_000);
+            socket.setTcpNoDelay(true);
+            out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+
+            readers.execute(() -> {
+                try {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        lines.add(line);
+                    }
+                } catch (IOException ignored) {
+                }
+                lines.add(CLOSED);
+            });
+        }
+
+        void send(String command) {
+            commands.incrementAndGet();
+            out.println(command);
+        }
+
+        // waits for a line starting with one of the prefixes, noting a completion notice on the way;
+        // returns null when the time runs out
+        String await(long timeoutMillis, String... prefixes) throws InterruptedException, IOException {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while (true) {
+                long remaining = deadline - System.nanoTime();
+                String line = remaining > 0 ? lines.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                if (line == null) return null;
+                if (line.equals(CLOSED)) throw new EOFException("server closed the connection");
+
+                if (line.startsWith("order for ") && line.contains("completed")) {
+                    readyAt = System.nanoTime();
+                }
+                for (String prefix : prefixes) {
+                    if (line.startsWith(prefix)) return line;
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void runCustomer(int number, Executor readers) {
+        Random random = new Random(seed * 1_000_003L + number);
+        try (Connection connection = new Connection(readers)) {
+            if (connection.await(timeoutMillis, "please enter your name") == null) {
+                throw new IOException("no welcome");
+            }
+
+            long start = System.nanoTime();
+            connection.send("load-" + number);
+            expect(connection.await(timeoutMillis, "hello "), "registration");
+            registration.recordSince(start);
+
+            for (int round = 0; round < rounds; round++) {
+                if (!runRound(connection, random)) {
+                    return;
+                }
+            }
+
+            connection.send("exit");
+            connection.await(timeoutMillis, "exit");
+        } catch (IOException | InterruptedException e) {
+            failed.incrementAndGet();
+        }
+    }
+
+    // order, poll until ready, collect; returns false if the customer walked out instead
+    private boolean runRound(Connection connection, Random random) throws IOException, InterruptedException {
+        connection.readyAt = 0;
+        long start = System.nanoTime();
+        connection.send(orderCommand);
+        String ack = connection.await(timeoutMillis, "✓", "✗");
+        expect(ack, "order");
+        orderAck.recordSince(start);
+        if (!ack.startsWith("✓")) throw new IOException("order refused: " + ack);
+        long orderedAt = start;
+
+        // a leaving customer goes some way into brewing, which hands their drinks to others
+        long leaveAt = random.nextDouble() < leaveProbability ?
+                System.nanoTime() + TimeUnit.MILLISECONDS.toNanos((long) (random.nextDouble() * 3 * statusIntervalMillis)) :
+                Long.MAX_VALUE;
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (connection.readyAt == 0) {
+            if (System.nanoTime() > deadline) throw new IOException("order never completed");
+
+            long wait = Math.min(statusIntervalMillis, TimeUnit.NANOSECONDS.toMillis(Math.max(0, leaveAt - System.nanoTime())));
+            connection.await(wait);
+            if (connection.readyAt != 0) break;
+
+            if (System.nanoTime() >= leaveAt) {
+                leftMidBrew.incrementAndGet();
+                connection.send("exit");
+                connection.await(timeoutMillis, "exit");
+                return false;
+            }
+
+            long statusStart = System.nanoTime();
+            connection.send("order status");
+            expect(connection.await(timeoutMillis, "order status for ", "✗"), "status");
+            status.recordSince(statusStart);
+        }
+        orderToReady.record(connection.readyAt - orderedAt);
+
+        long collectStart = System.nanoTime();
+        connection.send("collect");
+        String reply = connection.await(timeoutMillis, "✓ order collected", "✗");
+        expect(reply, "collect");
+        collection.recordSince(collectStart);
+        if (!reply.startsWith("✓")) throw new IOException("collect refused: " + reply);
+        collected.incrementAndGet();
+        return true;
+    }
+
+    // the same customer through CafeClient, where completion notices arrive on a queue
+    private void runClientCustomer(int number, CafeClient.IoGroup group) {
+        Random random = new Random(seed * 1_000_003L + number);
+        BlockingQueue<Long> completions = new LinkedBlockingQueue<>();
+        CafeClient client = null;
+        try {
+            client = CafeClient.connect(group, new InetSocketAddress(host, port), new CafeClient.Listener() {
+                @Override
+                public void onOrderCompleted(int teas, int coffees) {
+                    completions.add(System.nanoTime());
+                }
+            }).get(timeoutMillis, TimeUnit.MILLISECONDS);
+
+            long start = System.nanoTime();
+            commands.incrementAndGet();
+            client.register("load-" + number).get(timeoutMillis, TimeUnit.MILLISECONDS);
+            registration.recordSince(start);
+
+            for (int round = 0; round < rounds; round++) {
+                if (!runClientRound(client, completions, random)) {
+                    return;
+                }
+            }
+
+            commands.incrementAndGet();
+            client.exit().get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | TimeoutException | InterruptedException e) {
+            failed.incrementAndGet();
+        } finally {
+            if (client != null) {
+                client.close();
+            }
+        }
+    }
+
+    private boolean runClientRound(CafeClient client, BlockingQueue<Long> completions, Random random)
+            throws ExecutionException, TimeoutException, InterruptedException {
+        completions.clear();
+        long start = System.nanoTime();
+        commands.incrementAndGet();
+        int teas = binaryOrder.getTeas(), coffees = binaryOrder.getCoffees();
+        (binaryOrder.getType() == CommandParser.CommandType.BATCH ? client.batch(teas, coffees) : client.order(teas, coffees))
+                .get(timeoutMillis, TimeUnit.MILLISECONDS);
+        orderAck.recordSince(start);
+
+        long leaveAt = random.nextDouble() < leaveProbability ?
+                System.nanoTime() + TimeUnit.MILLISECONDS.toNanos((long) (random.nextDouble() * 3 * statusIntervalMillis)) :
+                Long.MAX_VALUE;
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        Long readyAt;
+        while (true) {
+            if (System.nanoTime() > deadline) throw new TimeoutException("order never completed");
+
+            long wait = Math.min(statusIntervalMillis, TimeUnit.NANOSECONDS.toMillis(Math.max(0, leaveAt - System.nanoTime())));
+            readyAt = completions.poll(wait, TimeUnit.MILLISECONDS);
+            if (readyAt != null) break;
+
+            if (System.nanoTime() >= leaveAt) {
+                leftMidBrew.incrementAndGet();
+                commands.incrementAndGet();
+                client.exit().get(timeoutMillis, TimeUnit.MILLISECONDS);
+                return false;
+            }
+
+            long statusStart = System.nanoTime();
+            commands.incrementAndGet();
+            client.status().get(timeoutMillis, TimeUnit.MILLISECONDS);
+            status.recordSince(statusStart);
+        }
+        orderToReady.record(readyAt - start);
+
+        long collectStart = System.nanoTime();
+        commands.incrementAndGet();
+        client.collect().get(timeoutMillis, TimeUnit.MILLISECONDS);
+        collection.recordSince(collectStart);
+        collected.incrementAndGet();
+        return true;
+    }
+
+    private static void expect(String line, String what) throws IOException {
+        if (line == null) throw new IOException("timed out waiting for " + what);
+    }
+
+    void run() throws InterruptedException, IOException {
+        Executor executor = SessionExecutors.perTaskExecutor(SessionExecutors.virtualThreadsAvailable());
+        CafeClient.IoGroup group = binary ? new CafeClient.IoGroup(ioThreads) : null;
+        CountDownLatch done = new CountDownLatch(customers);
+        long start = System.nanoTime();
+
+        for (int i = 1; i <= customers; i++) {
+            int number = i;
+            executor.execute(() -> {
+                try {
+                    if (binary) runClientCustomer(number, group);
+                    else runCustomer(number, executor);
+                } finally {
+                    done.countDown();
+                }
+            });
+            // customers arrive spread over the ramp rather than all at once
+            if (rampMillis > 0) {
+                Thread.sleep(rampMillis / customers, (int) (rampMillis * 1_000_000L / customers % 1_000_000));
+            }
+        }
+
+        done.await(timeoutMillis + rampMillis, TimeUnit.MILLISECONDS);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        if (group != null) {
+            group.close();
+        }
+
+        System.out.printf("customers: %d, rounds each: %d, order: '%s', protocol: %s%n",
+                customers, rounds, orderCommand, binary ? "binary" : "text");
+        System.out.printf("finished in %.1f s: %d orders collected, %d customers left mid-brew, %d failed%n",
+                seconds, collected.get(), leftMidBrew.get(), failed.get());
+        System.out.printf("throughput: %.1f commands/s, %.1f collections/s%n",
+                commands.get() / seconds, collected.get() / seconds);
+        System.out.println("registration:   " + registration.summary());
+        System.out.println("order ack:      " + orderAck.summary());
+        System.out.println("status:         " + status.summary());
+        System.out.println("collection:     " + collection.summary());
+        System.out.println("order to ready: " + orderToReady.summary());
+    }
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+        LoadGenerator generator;
+        try {
+            generator = new LoadGenerator(CafeConfig.load(args));
+        } catch (IllegalArgumentException e) {
+            System.err.println("error: " + e.getMessage());
+            return;
+        }
+        generator.run();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,194 @@
+package bench;
+
+import helpers.*;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+// benchmark suite for the café hot paths, with gc and allocation figures for each benchmark and the
+// results written as json so two releases can be compared
+//
+// javac -cp ".:gson.jar" *.java helpers/*.java bench/*.java
+// java -cp ".:gson.jar" bench.CafeBenchmarks [name filter] [--out=results.json]
+// java -cp ".:gson.jar" bench.CafeBenchmarks --compare=before.json after.json
+public class CafeBenchmarks {
+
+    private static final int[] BACKLOG_DEPTHS = {0, 1_000, 100_000};
+    private static final int[] ORDER_SIZES = {3, 50};
+    private static final int[] LOG_HISTORY = {0, 100_000};
+
+    // Barista lives in the unnamed package, so its static methods are reached through method handles
+    private static final MethodHandle configureSimulation;
+    private static final MethodHandle addToWaitingArea;
+    private static final MethodHandle removeFromWaitingArea;
+    private static final MethodHandle getOrderStatus;
+
+    static {
+        try {
+            Class<?> barista = Class.forName("Barista");
+            configureSimulation = handle(barista, "configureSimulation",
+                    CafeConfig.class, DiscreteEventScheduler.class, boolean.class);
+            addToWaitingArea = handle(barista, "addToWaitingArea", Order.class, List.class, boolean.class);
+            removeFromWaitingArea = handle(barista, "removeFromWaitingArea", boolean.class);
+            getOrderStatus = handle(barista, "getOrderStatus", Order.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle handle(Class<?> owner, String name, Class<?>... parameters)
+            throws ReflectiveOperationException {
+        Method method = owner.getDeclaredMethod(name, parameters);
+        method.setAccessible(true);
+        return MethodHandles.lookup().unreflect(method);
+    }
+
+    private final MicroBenchmark.Options options = MicroBenchmark.Options.fromSystemProperties();
+    private final String filter;
+    private final List<MicroBenchmark.Result> results = new ArrayList<>();
+
+    // brewing work scheduled by the waiting area benchmarks is queued here and never run
+    private final DiscreteEventScheduler scheduler = new DiscreteEventScheduler(0);
+
+    CafeBenchmarks(String filter) {
+        this.filter = filter;
+    }
+
+    private void run(String name, Map<String, String> params, MicroBenchmark.Operation operation) {
+        if (filter != null && !name.contains(filter)) return;
+
+        MicroBenchmark.Result result = MicroBenchmark.measure(name, params, options, operation);
+        results.add(result);
+        System.out.println(result);
+    }
+
+    void commandParsing() {
+        String[] lines = {"order 2 teas and 1 coffee", "order status", "order 1 tea", "collect"};
+
+        run("RegexProcessor.identifyCommand", Map.of(), i -> RegexProcessor.identifyCommand(lines[i & 3]).length());
+        run("RegexProcessor.parseOrder", Map.of(), i -> RegexProcessor.parseOrder(lines[(i & 1) * 2])[0]);
+
+        CommandParser.ParsedCommand parsed = new CommandParser.ParsedCommand();
+        run("CommandParser.parse", Map.of(), i -> CommandParser.parse(lines[i & 3], parsed).getTeas());
+    }
+
+    void orders() {
+        for (int size : ORDER_SIZES) {
+            Map<String, String> params = Map.of("items", String.valueOf(size));
+            Order order = new Order(new CustomerInfo("bench"), size / 2, size - size / 2);
+            Order.OrderItem tea = order.getItems().get(0);
+
+            run("Order.getTeas", params, i -> order.getTeas());
+            run("Order.formatOrderItems", params, i -> order.formatOrderItems().length());
+            run("Order.canRepurposeItem", params, i -> order.canRepurposeItem(tea) ? 1 : 0);
+        }
+    }
+
+    // each operation queues one new order and takes the oldest tea, so the backlog stays at its depth
+    void waitingArea() throws Throwable {
+        for (int depth : BACKLOG_DEPTHS) {
+            Map<String, String> params = Map.of("backlog", String.valueOf(depth));
+            resetBarista();
+            CustomerInfo customer = new CustomerInfo("bench");
+            for (int i = 0; i < depth; i++) {
+                Order order = new Order(customer, 1, 0);
+                addToWaitingArea.invoke(order, order.getItems(), true);
+            }
+            scheduler.shutdown();
+
+            run("Barista.addToWaitingArea+removeFromWaitingArea", params, i -> {
+                try {
+                    if ((i & 1023) == 0) {
+                        scheduler.shutdown();
+                    }
+                    Order order = new Order(customer, 1, 0);
+                    addToWaitingArea.invoke(order, order.getItems(), true);
+                    Order.OrderItem taken = (Order.OrderItem) removeFromWaitingArea.invoke(true);
+                    return taken == null ? 0 : 1;
+                } catch (Throwable e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+
+            Order polled = new Order(customer, 2, 1);
+            addToWaitingArea.invoke(polled, polled.getItems(), true);
+            run("Barista.getOrderStatus", params, i -> {
+                try {
+                    return ((String) getOrderStatus.invoke(polled)).length();
+                } catch (Throwable e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        }
+        resetBarista();
+    }
+
+    // Barista keeps its areas in static state, so every waiting item is drained between depths
+    private void resetBarista() throws Throwable {
+        configureSimulation.invoke(CafeConfig.defaults(), scheduler, false);
+        while (removeFromWaitingArea.invoke(true) != null) { }
+        while (removeFromWaitingArea.invoke(false) != null) { }
+        scheduler.shutdown();
+    }
+
+    // appending must cost the same however long the log already is
+    void stateLog() {
+        if (filter != null && !"StateLogger.log".contains(filter)) return;
+
+        StateLogger.State state = new StateLogger.State(new CafeCounters().snapshot());
+        int written = 0;
+        for (int history : LOG_HISTORY) {
+            for (; written < history; written++) {
+                StateLogger.log(state);
+            }
+            run("StateLogger.log", Map.of("history", String.valueOf(history)), i -> {
+                StateLogger.log(state);
+                return 1;
+            });
+        }
+    }
+
+    public static void main(String[] args) throws Throwable {
+        String filter = null;
+        Path out = Paths.get("bench-results.json");
+        Path compareWith = null;
+
+        for (String arg : args) {
+            if (arg.startsWith("--out=")) {
+                out = Paths.get(arg.substring(6));
+            } else if (arg.startsWith("--compare=")) {
+                compareWith = Paths.get(arg.substring(10));
+            } else if (compareWith != null) {
+                out = Paths.get(arg);
+            } else {
+                filter = arg;
+            }
+        }
+
+        if (compareWith != null) {
+            MicroBenchmark.compare(MicroBenchmark.readResults(compareWith), MicroBenchmark.readResults(out));
+            return;
+        }
+
+        // the state log benchmark appends to a scratch file instead of the café's log
+        Path scratchLog = Files.createTempFile("cafe-bench", ".jsonl");
+        scratchLog.toFile().deleteOnExit();
+        System.setProperty("cafe.log.file", scratchLog.toString());
+
+        CafeBenchmarks suite = new CafeBenchmarks(filter);
+        suite.commandParsing();
+        suite.orders();
+        suite.waitingArea();
+        suite.stateLog();
+
+        MicroBenchmark.writeResults(suite.results, out);
+        System.out.println("results written to " + out);
+    }
+}
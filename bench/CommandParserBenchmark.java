@@ -0,0 +1,189 @@
+package bench;
+
+import helpers.CommandParser;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// compares the single pass CommandParser with the regex based parsing it replaced, after checking that
+// both reach the same decision for a fixed set of lines and a large number of generated ones
+//
+// javac -cp ".:gson.jar" *.java helpers/*.java bench/*.java
+// java -cp ".:gson.jar" bench.CommandParserBenchmark
+public class CommandParserBenchmark {
+
+    // the regex rules and order parsing as they were before CommandParser, kept as the reference
+    static class LegacyRegexProcessor {
+        private static final String COLLECT_PATTERN = "^collect$";
+        private static final String EXIT_PATTERN = "^exit$";
+        private static final String STATUS_PATTERN = "^order status$";
+
+        private static final String QUANTITY = "(\\d+)\\s+";
+        private static final String ITEM = "(tea|coffee)(s)?";
+        private static final String AND_CONNECTOR = "\\s+and\\s+";
+        private static final String ORDER_START = "^order\\s+";
+
+        private static final String ORDER_PATTERN = ORDER_START + QUANTITY + ITEM +
+                "(" + AND_CONNECTOR + QUANTITY + ITEM + ")?$";
+
+        static String identifyCommand(String command) {
+            if (command == null || command.trim().isEmpty()) {
+                return "invalid";
+            }
+            if (command.matches(COLLECT_PATTERN)) return "collect";
+            if (command.matches(EXIT_PATTERN)) return "exit";
+            if (command.matches(STATUS_PATTERN)) return "status";
+            if (command.matches(ORDER_PATTERN)) return "order";
+            return "invalid";
+        }
+
+        static int[] parseOrder(String command) {
+            String[] parts = command.substring(6).split(" and ");
+            int totalTeas = 0;
+            int totalCoffees = 0;
+
+            for (String part : parts) {
+                String[] words = part.trim().split("\\s+");
+                if (words.length < 2) {
+                    return new int[]{0, 0};
+                }
+
+                int quantity;
+                try {
+                    quantity = Integer.parseInt(words[0]);
+                    if (quantity <= 0) {
+                        return new int[]{0, 0};
+                    }
+                } catch (NumberFormatException e) {
+                    return new int[]{0, 0};
+                }
+
+                String item = words[1].toLowerCase();
+                boolean isPlural = item.endsWith("s");
+                String itemSingular = isPlural ? item.substring(0, item.length() - 1) : item;
+                boolean invalidGrammar = (quantity == 1 && isPlural) || (quantity > 1 && !isPlural);
+
+                if (itemSingular.equals("tea")) {
+                    if (invalidGrammar) return new int[]{0, 0};
+                    totalTeas += quantity;
+                } else if (itemSingular.equals("coffee")) {
+                    if (invalidGrammar) return new int[]{0, 0};
+                    totalCoffees += quantity;
+                } else {
+                    return new int[]{0, 0};
+                }
+            }
+            return new int[]{totalTeas, totalCoffees};
+        }
+
+        // what Barista's handleCommand did with a line: identify it, then parse an order twice
+        static String decide(String command) {
+            String action = identifyCommand(command);
+            if (!action.equals("order")) {
+                return action;
+            }
+            int[] quantities = parseOrder(command);
+            if (quantities[0] > 0 || quantities[1] > 0) {
+                int[] again = parseOrder(command);
+                return "order " + again[0] + " " + again[1];
+            }
+            return "invalid order";
+        }
+    }
+
+    static String decide(String command, CommandParser.ParsedCommand parsed) {
+        CommandParser.parse(command, parsed);
+        return switch (parsed.getType()) {
+            case COLLECT -> "collect";
+            case EXIT -> "exit";
+            case STATUS -> "status";
+            case ORDER -> "order " + parsed.getTeas() + " " + parsed.getCoffees();
+            // not commands the regex rules knew, so they are compared as the invalid commands they were then
+            case STATS, BATCH -> "invalid";
+            case INVALID_ORDER -> "invalid order";
+            case INVALID -> "invalid";
+        };
+    }
+
+    private static final String[] FIXED_LINES = {
+            "order 2 teas and 1 coffee", "order status", "collect", "exit", "order 1 tea",
+            "order 3 coffees", "order 1 teas", "order 2 tea", "order 0 teas", "order 1 tea and 0 coffees",
+            "order 1 tea\tand 0 coffees", "order  1 tea  and  2 coffees", "order 99999999999 teas",
+            "order 2147483647 teas and 1 tea", "order 2147483647 teas and 1 coffee", "order 007 teas",
+            "Order 1 tea", "order 1 tea ", " order 1 tea", "order 1 teapot", "order 1 tea and", "",
+            "   ", "order", "order status ", "order 1 tea and 1 tea", "order 1 tea and 2 cakes", "bogus",
+            "order 1 tea\u000Band 2 coffees", "order 1 tea and\r2 coffees", "order\t1\ttea"
+    };
+
+    private static final String[] WHITESPACE = {" ", " ", " ", "  ", "\t", "\u000B", "\f", "\r", "\n", ""};
+    private static final String[] ITEMS = {"tea", "teas", "coffee", "coffees", "teass", "cake", "Tea", "te"};
+    private static final String[] NUMBERS = {"1", "2", "3", "0", "10", "01", "2147483647", "2147483648",
+            "99999999999", "-1", "+2", "1.5", ""};
+
+    // lines built from the order grammar with random whitespace, quantities, items and stray words
+    static List<String> generateLines(Random random, int count) {
+        List<String> lines = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            StringBuilder line = new StringBuilder();
+            if (random.nextInt(20) == 0) line.append(pick(random, WHITESPACE));
+            line.append(random.nextInt(15) == 0 ? "orders" : "order");
+            line.append(pick(random, WHITESPACE));
+            line.append(pick(random, NUMBERS)).append(pick(random, WHITESPACE)).append(pick(random, ITEMS));
+            if (random.nextBoolean()) {
+                line.append(pick(random, WHITESPACE)).append(random.nextInt(10) == 0 ? "und" : "and")
+                        .append(pick(random, WHITESPACE));
+                line.append(pick(random, NUMBERS)).append(pick(random, WHITESPACE)).append(pick(random, ITEMS));
+            }
+            if (random.nextInt(20) == 0) line.append(pick(random, WHITESPACE));
+            lines.add(line.toString());
+        }
+        return lines;
+    }
+
+    private static String pick(Random random, String[] choices) {
+        return choices[random.nextInt(choices.length)];
+    }
+
+    // every line must get the same decision from both parsers before any timing is trusted
+    static void verifyEquivalence(List<String> lines) {
+        CommandParser.ParsedCommand parsed = new CommandParser.ParsedCommand();
+        int accepted = 0;
+        for (String line : lines) {
+            String expected = LegacyRegexProcessor.decide(line);
+            String actual = decide(line, parsed);
+            if (!expected.equals(actual)) {
+                throw new IllegalStateException("parsers disagree on '" + line.replace("\t", "\\t") +
+                        "': regex gave '" + expected + "', CommandParser gave '" + actual + "'");
+            }
+            if (expected.startsWith("order ")) accepted++;
+        }
+        System.out.println("verified " + lines.size() + " lines (" + accepted + " accepted orders)");
+    }
+
+    public static void main(String[] args) {
+        List<String> checked = new ArrayList<>(List.of(FIXED_LINES));
+        checked.addAll(generateLines(new Random(42), 200_000));
+        verifyEquivalence(checked);
+
+        // a realistic mix, mostly orders and status checks
+        String[] workload = {
+                "order 2 teas and 1 coffee", "order status", "order 1 tea", "collect",
+                "order 3 coffees and 2 teas", "order status", "order 1 coffee", "bogus command"
+        };
+        MicroBenchmark.Options options = MicroBenchmark.Options.fromSystemProperties();
+
+        MicroBenchmark.Result legacy = MicroBenchmark.measure("regex identifyCommand + parseOrder", options,
+                i -> LegacyRegexProcessor.decide(workload[i & 7]).length());
+
+        CommandParser.ParsedCommand parsed = new CommandParser.ParsedCommand();
+        MicroBenchmark.Result parser = MicroBenchmark.measure("CommandParser.parse", options, i -> {
+            CommandParser.parse(workload[i & 7], parsed);
+            return parsed.getType().ordinal() + parsed.getTeas() + parsed.getCoffees();
+        });
+
+        System.out.println(legacy);
+        System.out.println(parser);
+        System.out.printf("speedup: %.1fx%n", legacy.score / parser.score);
+    }
+}
@@ -0,0 +1,196 @@
+package bench;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// a small timing harness in the style of JMH for the café hot paths: each benchmark runs for a few
+// warmup iterations so the JIT settles, then for timed measurement iterations reported as ns/op, with
+// gc and allocation figures taken over the measured iterations
+public class MicroBenchmark {
+
+    // one call of the code under test, returning something derived from its result so it is not
+    // optimised away
+    public interface Operation {
+        long run(int invocation);
+    }
+
+    public static class Options {
+        int warmupIterations = 5;
+        int measurementIterations = 5;
+        long iterationMillis = 500;
+
+        // e.g. -Dbench.warmup=3 -Dbench.iterations=10 -Dbench.time.ms=1000
+        public static Options fromSystemProperties() {
+            Options options = new Options();
+            options.warmupIterations = Integer.getInteger("bench.warmup", options.warmupIterations);
+            options.measurementIterations = Integer.getInteger("bench.iterations", options.measurementIterations);
+            options.iterationMillis = Long.getLong("bench.time.ms", options.iterationMillis);
+            return options;
+        }
+    }
+
+    // field names follow JMH's json output, so results read the same way
+    public static class Result {
+        public final String benchmark;
+        public final Map<String, String> params;
+        public final double score;
+        public final double scoreError;
+        public final String scoreUnit = "ns/op";
+        public final long operations;
+
+        // gc.alloc.rate.norm (B/op), gc.alloc.rate (MB/sec), gc.count and gc.time (ms)
+        public final Map<String, Double> secondaryMetrics;
+
+        Result(String benchmark, Map<String, String> params, double score, double scoreError, long operations,
+               Map<String, Double> secondaryMetrics) {
+            this.benchmark = benchmark;
+            this.params = params;
+            this.score = score;
+            this.scoreError = scoreError;
+            this.operations = operations;
+            this.secondaryMetrics = secondaryMetrics;
+        }
+
+        public String key() {
+            return params.isEmpty() ? benchmark : benchmark + " " + params;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-56s %12.1f +/- %8.1f ns/op %10.1f B/op %6.0f gcs",
+                    key(), score, scoreError,
+                    secondaryMetrics.getOrDefault("gc.alloc.rate.norm", Double.NaN),
+                    secondaryMetrics.getOrDefault("gc.count", Double.NaN));
+        }
+    }
+
+    private static final Gson gson = new GsonBuilder().setPrettyPrinting().serializeSpecialFloatingPointValues().create();
+
+    // allocation is counted per thread, which is exact for benchmarks that run on the calling thread
+    private static final com.sun.management.ThreadMXBean threads =
+            ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean bean &&
+                    bean.isThreadAllocatedMemorySupported() ? bean : null;
+
+    private static volatile long sink;
+
+    public static Result measure(String name, Options options, Operation operation) {
+        return measure(name, Map.of(), options, operation);
+    }
+
+    public static Result measure(String name, Map<String, String> params, Options options, Operation operation) {
+        for (int i = 0; i < options.warmupIterations; i++) {
+            runIteration(operation, options.iterationMillis);
+        }
+
+        long gcCountBefore = gcCount();
+        long gcTimeBefore = gcTime();
+        long allocatedBefore = allocatedBytes();
+
+        List<Double> samples = new ArrayList<>();
+        long totalOperations = 0;
+        long totalNanos = 0;
+        for (int i = 0; i < options.measurementIterations; i++) {
+            long[] timed = runIteration(operation, options.iterationMillis);
+            samples.add((double) timed[0] / timed[1]);
+            totalNanos += timed[0];
+            totalOperations += timed[1];
+        }
+
+        long allocated = allocatedBytes() - allocatedBefore;
+        Map<String, Double> secondary = new LinkedHashMap<>();
+        if (threads != null) {
+            secondary.put("gc.alloc.rate.norm", (double) allocated / totalOperations);
+            secondary.put("gc.alloc.rate", allocated / 1e6 / (totalNanos / 1e9));
+        }
+        secondary.put("gc.count", (double) (gcCount() - gcCountBefore));
+        secondary.put("gc.time", (double) (gcTime() - gcTimeBefore));
+
+        double mean = samples.stream().mapToDouble(Double::doubleValue).average().orElse(0);
+        double variance = samples.stream().mapToDouble(sample -> (sample - mean) * (sample - mean)).sum() /
+                Math.max(1, samples.size() - 1);
+        return new Result(name, params, mean, Math.sqrt(variance), totalOperations, secondary);
+    }
+
+    // calls the operation in batches until the iteration time is used up, returning {nanos, operations}
+    private static long[] runIteration(Operation operation, long iterationMillis) {
+        long deadline = System.nanoTime() + iterationMillis * 1_000_000;
+        long operations = 0;
+        long accumulated = 0;
+        long start = System.nanoTime();
+        long now;
+
+        do {
+            for (int i = 0; i < 1024; i++) {
+                accumulated += operation.run((int) operations++);
+            }
+            now = System.nanoTime();
+        } while (now < deadline);
+
+        sink = accumulated;
+        return new long[]{now - start, operations};
+    }
+
+    private static long allocatedBytes() {
+        return threads == null ? 0 : threads.getCurrentThreadAllocatedBytes();
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, collector.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, collector.getCollectionTime());
+        }
+        return time;
+    }
+
+    public static void writeResults(List<Result> results, Path target) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(target)) {
+            gson.toJson(results, writer);
+        }
+    }
+
+    public static List<Result> readResults(Path source) throws IOException {
+        try (Reader reader = Files.newBufferedReader(source)) {
+            return gson.fromJson(reader, new TypeToken<List<Result>>() { }.getType());
+        }
+    }
+
+    // prints how each benchmark present in both result files changed, e.g. between two releases
+    public static void compare(List<Result> baseline, List<Result> current) {
+        Map<String, Result> byKey = new LinkedHashMap<>();
+        for (Result result : baseline) {
+            byKey.put(result.key(), result);
+        }
+
+        System.out.printf("%-56s %12s %12s %9s %12s %12s%n",
+                "benchmark", "before ns", "after ns", "change", "before B/op", "after B/op");
+        for (Result after : current) {
+            Result before = byKey.get(after.key());
+            if (before == null) continue;
+            System.out.printf("%-56s %12.1f %12.1f %+8.1f%% %12.1f %12.1f%n",
+                    after.key(), before.score, after.score, 100 * (after.score - before.score) / before.score,
+                    before.secondaryMetrics.getOrDefault("gc.alloc.rate.norm", Double.NaN),
+                    after.secondaryMetrics.getOrDefault("gc.alloc.rate.norm", Double.NaN));
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package bench;
+
+import java.io.*;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+// compares memory per connection and accept throughput of the Barista session modes,
+// starting each mode in its own JVM and reading its footprint from /proc (linux only)
+//
+// javac -cp ".:gson.jar" *.java helpers/*.java bench/*.java
+// java -cp ".:gson.jar" bench.SessionModeBenchmark [connections] [modes...]
+public class SessionModeBenchmark {
+
+    private static final int PORT = 8888;
+
+    private static class Footprint {
+        final long rssKb;
+        final int threads;
+
+        Footprint(long rssKb, int threads) {
+            this.rssKb = rssKb;
+            this.threads = threads;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        List<String> modes = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            modes.add(args[i]);
+        }
+        if (modes.isEmpty()) {
+            modes = List.of("threads", "virtual", "nio");
+        }
+
+        System.out.printf("%-10s %12s %14s %14s %12s%n",
+                "mode", "connections", "accepts/sec", "kB/connection", "threads");
+        for (String mode : modes) {
+            run(mode, connections);
+        }
+    }
+
+    private static void run(String mode, int connections) throws Exception {
+        Path workingDirectory = Files.createTempDirectory("cafe-bench");
+        List<String> command = new ArrayList<>(List.of(
+                Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-Dfile.encoding=UTF-8",
+                "-cp", absoluteClassPath(),
+                "Barista"));
+        switch (mode) {
+            case "virtual" -> command.add("--virtual");
+            case "nio" -> command.add("--nio");
+            default -> { }
+        }
+
+        Process server = new ProcessBuilder(command)
+                .directory(workingDirectory.toFile())
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+
+        List<Socket> sockets = new ArrayList<>(connections);
+        try {
+            awaitServer();
+            Thread.sleep(500);
+            Footprint idle = footprint(server.pid());
+
+            long start = System.nanoTime();
+            for (int i = 0; i < connections; i++) {
+                Socket socket = new Socket("localhost", PORT);
+                sockets.add(socket);
+                awaitWelcome(socket);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            // registered customers keep their session state, as in normal use
+            for (int i = 0; i < sockets.size(); i++) {
+                sockets.get(i).getOutputStream().write(("bench-" + i + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            Thread.sleep(1000);
+            Footprint loaded = footprint(server.pid());
+
+            System.out.printf("%-10s %12d %14.0f %14.1f %12d%n",
+                    mode, connections, connections / seconds,
+                    (loaded.rssKb - idle.rssKb) / (double) connections,
+                    loaded.threads);
+        } finally {
+            for (Socket socket : sockets) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+            server.destroyForcibly().waitFor();
+        }
+    }
+
+    private static String absoluteClassPath() {
+        StringBuilder classPath = new StringBuilder();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            if (classPath.length() > 0) classPath.append(File.pathSeparator);
+            classPath.append(Paths.get(entry).toAbsolutePath());
+        }
+        return classPath.toString();
+    }
+
+    private static void awaitServer() throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try (Socket probe = new Socket("localhost", PORT)) {
+                awaitWelcome(probe);
+                return;
+            } catch (ConnectException e) {
+                Thread.sleep(100);
+            } catch (IOException e) {
+                return;
+            }
+        }
+        throw new IllegalStateException("server did not start on port " + PORT);
+    }
+
+    private static void awaitWelcome(Socket socket) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.startsWith("please enter your name")) {
+                return;
+            }
+        }
+    }
+
+    private static Footprint footprint(long pid) throws IOException {
+        long rss = 0;
+        int threads = 0;
+        for (String line : Files.readAllLines(Paths.get("/proc", Long.toString(pid), "status"))) {
+            if (line.startsWith("VmRSS:")) {
+                rss = Long.parseLong(line.replaceAll("\\D", ""));
+            } else if (line.startsWith("Threads:")) {
+                threads = Integer.parseInt(line.replaceAll("\\D", ""));
+            }
+        }
+        return new Footprint(rss, threads);
+    }
+}
@@ -0,0 +1,494 @@
+package helpers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+// asynchronous client for the barista's binary protocol. every command goes out as a TAGGED frame and is
+// answered through a CompletableFuture matched by its request id, so one connection can have any number of
+// commands in flight, while completion and repurposing notices are passed to a Listener. connections are
+// served by an IoGroup, a few selector threads shared by any number of clients in one JVM; futures complete
+// and listeners run on those threads, so callbacks must not block
+public class CafeClient implements Closeable {
+
+    private static final int MAX_GATHER = 64;
+
+    public interface Listener {
+        default void onOrderCompleted(int teas, int coffees) {
+        }
+
+        default void onItemRepurposed(boolean isTea, boolean fromTray, String fromCustomer) {
+        }
+
+        // an order the barista kept for this customer's name across a restart
+        default void onOrderRestored(int teas, int coffees) {
+        }
+
+        // cause is null when the connection ended through exit or close
+        default void onDisconnected(Throwable cause) {
+        }
+    }
+
+    // the barista refused a command, e.g. collecting an order that is not ready; code is a WireProtocol error code
+    public static class RefusedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public final byte code;
+        public final String detail;
+
+        RefusedException(byte code, String detail) {
+            super("refused with code " + code + (detail.isEmpty() ? "" : ": " + detail));
+            this.code = code;
+            this.detail = detail;
+        }
+    }
+
+    // the whole order once an order or batch has been accepted
+    public static class OrderAck {
+        public final boolean updated;
+        public final int teas;
+        public final int coffees;
+
+        OrderAck(boolean updated, int teas, int coffees) {
+            this.updated = updated;
+            this.teas = teas;
+            this.coffees = coffees;
+        }
+    }
+
+    // a command awaiting its reply, with how to read the reply's payload
+    private static class Pending<T> {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        final Function<ByteBuffer, T> decoder;
+
+        Pending(Function<ByteBuffer, T> decoder) {
+            this.decoder = decoder;
+        }
+
+        void complete(ByteBuffer reply) {
+            if (reply.get(reply.position()) == WireProtocol.ERROR) {
+                reply.get();
+                byte code = reply.get();
+                future.completeExceptionally(new RefusedException(code, WireProtocol.getString(reply)));
+                return;
+            }
+            try {
+                future.complete(decoder.apply(reply));
+            } catch (RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+
+    private final IoLoop loop;
+    private final Listener listener;
+    private final CompletableFuture<CafeClient> greeted = new CompletableFuture<>();
+    private final CompletableFuture<String> registered = new CompletableFuture<>();
+    private final StringBuilder greeting = new StringBuilder();
+
+    private final AtomicInteger nextRequestId = new AtomicInteger(0);
+    private final ConcurrentHashMap<Integer, Pending<?>> pending = new ConcurrentHashMap<>();
+
+    private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private final AtomicBoolean writeRequested = new AtomicBoolean(false);
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private volatile boolean exiting = false;
+
+    // owned by the loop thread: the channel, and the bytes of a line or frame still being received
+    private SocketChannel channel;
+    private SelectionKey key;
+    private ByteArrayOutputStream partial;
+    private boolean readingFrames = false;
+
+    private CafeClient(IoLoop loop, Listener listener) {
+        this.loop = loop;
+        this.listener = listener == null ? new Listener() { } : listener;
+    }
+
+    // completes once the barista has greeted the connection, after which register names the customer
+    public static CompletableFuture<CafeClient> connect(IoGroup group, InetSocketAddress address, Listener listener) {
+        CafeClient client = new CafeClient(group.next(), listener);
+        client.loop.execute(() -> client.open(address));
+        return client.greeted;
+    }
+
+    // the welcome text the barista sent before asking for a name
+    public String getGreeting() {
+        return greeting.toString();
+    }
+
+    // completes with the name once the barista has registered it
+    public CompletableFuture<String> register(String name) {
+        send((WireProtocol.HANDSHAKE + name + "\n").getBytes(StandardCharsets.UTF_8));
+        return registered;
+    }
+
+    // places a new order or adds to the current one
+    public CompletableFuture<OrderAck> order(int teas, int coffees) {
+        return request(WireProtocol.frame(WireProtocol.ORDER, teas, coffees), CafeClient::readOrderAck);
+    }
+
+    // several line items placed or added together, given as pairs of teas and coffees
+    public CompletableFuture<OrderAck> batch(int... quantities) {
+        return request(WireProtocol.batchFrame(quantities), CafeClient::readOrderAck);
+    }
+
+    public CompletableFuture<Order.AreaCounts> status() {
+        return request(WireProtocol.frame(WireProtocol.STATUS), reply -> {
+            reply.get();
+            int[] counts = new int[6];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = reply.getInt();
+            }
+            return new Order.AreaCounts(counts);
+        });
+    }
+
+    public CompletableFuture<Void> collect() {
+        return request(WireProtocol.frame(WireProtocol.COLLECT), reply -> null);
+    }
+
+    public CompletableFuture<String> stats() {
+        return request(WireProtocol.frame(WireProtocol.STATS), reply -> {
+            reply.get();
+            return WireProtocol.getString(reply);
+        });
+    }
+
+    // leaves the café, after which the barista closes the connection
+    public CompletableFuture<Void> exit() {
+        exiting = true;
+        return request(WireProtocol.frame(WireProtocol.EXIT), reply -> null);
+    }
+
+    // drops the connection at once, which the barista treats like an exit; unanswered commands fail
+    @Override
+    public void close() {
+        exiting = true;
+        loop.execute(() -> closeNow(null));
+    }
+
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    private static OrderAck readOrderAck(ByteBuffer reply) {
+        boolean updated = reply.get() == WireProtocol.ORDER_UPDATED;
+        return new OrderAck(updated, reply.getInt(), reply.getInt());
+    }
+
+    private <T> CompletableFuture<T> request(byte[] command, Function<ByteBuffer, T> decoder) {
+        Pending<T> request = new Pending<>(decoder);
+        int id = nextRequestId.incrementAndGet();
+        pending.put(id, request);
+        // closing fails whatever is pending, so a request registered after that is failed here
+        if (closed.get() && pending.remove(id) != null) {
+            request.future.completeExceptionally(new IOException("connection closed"));
+            return request.future;
+        }
+        send(WireProtocol.tagged(WireProtocol.TAGGED, id, command));
+        return request.future;
+    }
+
+    private void send(byte[] bytes) {
+        if (closed.get()) return;
+        outbound.add(ByteBuffer.wrap(bytes));
+        if (Thread.currentThread() == loop.thread) {
+            flush();
+        } else if (writeRequested.compareAndSet(false, true)) {
+            loop.execute(this::flush);
+        }
+    }
+
+    private void open(InetSocketAddress address) {
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            boolean connected = channel.connect(address);
+            key = channel.register(loop.selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+        } catch (IOException e) {
+            closeNow(e);
+        }
+    }
+
+    private void finishConnect() {
+        try {
+            channel.finishConnect();
+            key.interestOps(SelectionKey.OP_READ);
+            flush();
+        } catch (IOException e) {
+            closeNow(e);
+        }
+    }
+
+    private void flush() {
+        writeRequested.set(false);
+        if (closed.get() || key == null || !key.isValid() || !channel.isConnected()) return;
+
+        try {
+            while (!outbound.isEmpty()) {
+                int count = 0;
+                long requested = 0;
+                for (ByteBuffer buffer : outbound) {
+                    gather[count++] = buffer;
+                    requested += buffer.remaining();
+                    if (count == MAX_GATHER) break;
+                }
+                long written = channel.write(gather, 0, count);
+                for (int i = 0; i < count; i++) {
+                    if (!gather[i].hasRemaining()) {
+                        outbound.poll();
+                    }
+                    gather[i] = null;
+                }
+                if (written < requested) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        } catch (IOException | CancelledKeyException e) {
+            closeNow(e);
+        }
+    }
+
+    private void read(ByteBuffer readBuffer) {
+        try {
+            while (true) {
+                readBuffer.clear();
+                int read = channel.read(readBuffer);
+                if (read < 0) {
+                    closeNow(exiting ? null : new EOFException("the barista closed the connection"));
+                    return;
+                }
+                if (read == 0) {
+                    return;
+                }
+                readBuffer.flip();
+
+                ByteBuffer input = readBuffer;
+                if (partial != null) {
+                    partial.write(readBuffer.array(), 0, readBuffer.limit());
+                    input = ByteBuffer.wrap(partial.toByteArray());
+                    partial = null;
+                }
+                if (!readingFrames) {
+                    readGreeting(input);
+                }
+                if (readingFrames) {
+                    readFrames(input);
+                }
+                if (input.hasRemaining() && !closed.get()) {
+                    partial = new ByteArrayOutputStream();
+                    partial.write(input.array(), input.arrayOffset() + input.position(), input.remaining());
+                }
+            }
+        } catch (IOException e) {
+            closeNow(e);
+        }
+    }
+
+    // the greeting is text, up to and including the line asking for a name
+    private void readGreeting(ByteBuffer input) throws IOException {
+        byte[] bytes = input.array();
+        int start = input.position();
+        for (int i = start; i < input.limit(); i++) {
+            if (bytes[i] != '\n') continue;
+
+            String line = new String(bytes, start, i - start, StandardCharsets.UTF_8);
+            start = i + 1;
+            if (greeting.length() > 0) {
+                greeting.append('\n');
+            }
+            greeting.append(line);
+            if (line.startsWith("please enter your name")) {
+                readingFrames = true;
+                input.position(start);
+                greeted.complete(this);
+                return;
+            }
+        }
+        input.position(start);
+        if (input.remaining() > WireProtocol.MAX_LINE) {
+            throw new IOException("greeting line too long");
+        }
+    }
+
+    private void readFrames(ByteBuffer input) throws IOException {
+        while (input.remaining() >= 2 && !closed.get()) {
+            int length = input.getShort(input.position()) & 0xFFFF;
+            if (length == 0) {
+                throw new IOException("empty frame");
+            }
+            if (input.remaining() < 2 + length) break;
+
+            ByteBuffer frame = input.slice(input.position() + 2, length);
+            input.position(input.position() + 2 + length);
+            try {
+                handleFrame(frame);
+            } catch (RuntimeException e) {
+                // a failing listener must not take the shared io thread down with it
+                System.err.println("error handling a message from the barista: " + e);
+            }
+        }
+    }
+
+    private void handleFrame(ByteBuffer frame) {
+        byte type = frame.get();
+        switch (type) {
+            case WireProtocol.REPLY -> {
+                Pending<?> request = pending.remove(frame.getInt());
+                if (request != null) {
+                    request.complete(frame);
+                }
+            }
+            case WireProtocol.REGISTERED -> registered.complete(WireProtocol.getString(frame));
+            case WireProtocol.RESTORED -> listener.onOrderRestored(frame.getInt(), frame.getInt());
+            case WireProtocol.COMPLETED -> listener.onOrderCompleted(frame.getInt(), frame.getInt());
+            case WireProtocol.REPURPOSED -> {
+                boolean isTea = frame.get() != 0;
+                boolean fromTray = frame.get() != 0;
+                listener.onItemRepurposed(isTea, fromTray, WireProtocol.getString(frame));
+            }
+            // the only untagged refusal is of the name
+            case WireProtocol.ERROR -> {
+                byte code = frame.get();
+                registered.completeExceptionally(new RefusedException(code, WireProtocol.getString(frame)));
+            }
+            default -> {
+                // a newer barista's message this client does not know is skipped
+            }
+        }
+    }
+
+    private void closeNow(Throwable cause) {
+        if (!closed.compareAndSet(false, true)) return;
+
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException ignored) {
+        }
+        outbound.clear();
+
+        IOException failure = new IOException("connection closed", cause);
+        greeted.completeExceptionally(failure);
+        registered.completeExceptionally(failure);
+        for (Integer id : pending.keySet()) {
+            Pending<?> request = pending.remove(id);
+            if (request != null) {
+                request.future.completeExceptionally(failure);
+            }
+        }
+        listener.onDisconnected(cause);
+    }
+
+    // a few selector threads serving every client created with them
+    public static class IoGroup implements Closeable {
+        private final IoLoop[] loops;
+        private final AtomicInteger nextLoop = new AtomicInteger(0);
+
+        public IoGroup(int threads) throws IOException {
+            loops = new IoLoop[Math.max(1, threads)];
+            for (int i = 0; i < loops.length; i++) {
+                loops[i] = new IoLoop("cafe-client-io-" + i);
+                loops[i].thread.start();
+            }
+        }
+
+        private IoLoop next() {
+            return loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+        }
+
+        // stops the threads; clients still open are closed with them
+        @Override
+        public void close() {
+            for (IoLoop loop : loops) {
+                loop.execute(loop::stop);
+            }
+        }
+    }
+
+    private static class IoLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+        private volatile boolean running = true;
+
+        IoLoop(String name) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, name);
+            this.thread.setDaemon(true);
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void stop() {
+            running = false;
+            for (SelectionKey key : selector.keys()) {
+                ((CafeClient) key.attachment()).closeNow(null);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        CafeClient client = (CafeClient) key.attachment();
+
+                        if (key.isValid() && key.isConnectable()) {
+                            client.finishConnect();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            client.flush();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            client.read(readBuffer);
+                        }
+                    }
+                } catch (IOException | CancelledKeyException e) {
+                    if (running) {
+                        System.err.println("error: " + e.getMessage());
+                    }
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package helpers;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+// source of the current time, so the café can run against the real clock or a simulated one
+public interface CafeClock {
+    CafeClock SYSTEM = System::currentTimeMillis;
+
+    long millis();
+
+    // for measuring intervals, which a simulated clock derives from its virtual time
+    default long nanoTime() {
+        return System.nanoTime();
+    }
+
+    default LocalDateTime now() {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(millis()), ZoneId.systemDefault());
+    }
+}
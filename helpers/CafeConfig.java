@@ -0,0 +1,184 @@
+package helpers;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+// runtime settings for a Barista instance, read from cafe.properties (or --config=path) and then
+// overridden by command line flags, e.g. --tea-slots=4 sets tea.slots
+public class CafeConfig {
+    private static final String DEFAULT_FILE = "cafe.properties";
+
+    private final Properties properties = new Properties();
+
+    public final String host;
+    public final int port;
+    public final int teaSlots;
+    public final int coffeeSlots;
+    public final int teaBrewMillis;
+    public final int coffeeBrewMillis;
+    public final int brewThreads;
+    public final int orderMaxDrinks;
+    public final boolean useSelector;
+    public final boolean useVirtualThreads;
+    public final int ioThreads;
+    public final int commandThreads;
+    public final int outboxHighWater;
+    public final String metricsHost;
+    public final int metricsPort;
+    public final boolean statsCommand;
+    public final String journalDir;
+    public final boolean journalSync;
+    public final int journalSnapshotRecords;
+    public final int journalReclaimMillis;
+    public final int logCapacity;
+    public final LogPipeline.OverflowPolicy logOverflow;
+
+    private CafeConfig(Properties values) {
+        properties.putAll(values);
+        host = stringValue("host", "");
+        port = intValue("port", 8888, 1);
+        teaSlots = intValue("tea.slots", 2, 1);
+        coffeeSlots = intValue("coffee.slots", 2, 1);
+        teaBrewMillis = intValue("tea.brew.ms", 30000, 0);
+        coffeeBrewMillis = intValue("coffee.brew.ms", 45000, 0);
+        brewThreads = intValue("brew.threads", 2, 1);
+        orderMaxDrinks = intValue("order.max.drinks", 100, 1);
+        useSelector = booleanValue("nio");
+        useVirtualThreads = booleanValue("virtual");
+        ioThreads = intValue("io.threads", Runtime.getRuntime().availableProcessors(), 1);
+        commandThreads = intValue("command.threads", 32, 1);
+        outboxHighWater = intValue("outbox.high.water", 256 * 1024, 1024);
+        metricsHost = stringValue("metrics.host", "localhost");
+        metricsPort = intValue("metrics.port", 0, 0);
+        statsCommand = booleanValue("stats.command");
+        // off unless a directory is given, so a plain start never writes to or waits on the disk
+        journalDir = stringValue("journal.dir", "");
+        journalSync = Boolean.parseBoolean(stringValue("journal.sync", "true"));
+        journalSnapshotRecords = intValue("journal.snapshot.records", 10000, 1);
+        journalReclaimMillis = intValue("journal.reclaim.ms", 10 * 60 * 1000, 0);
+        logCapacity = intValue("log.capacity", 1024, 2);
+        logOverflow = LogPipeline.OverflowPolicy.parse(stringValue("log.overflow", "coalesce"));
+        // every state change is logged from the café's event loop, which must never wait on a slow console or disk
+        if (logOverflow == LogPipeline.OverflowPolicy.BLOCK) {
+            throw new IllegalArgumentException("log.overflow must be drop-oldest or coalesce, since blocking would stall the café");
+        }
+    }
+
+    public static CafeConfig defaults() {
+        return new CafeConfig(new Properties());
+    }
+
+    // throws IllegalArgumentException for unreadable files and invalid values
+    public static CafeConfig load(String[] args) {
+        Properties flags = new Properties();
+        String file = null;
+
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("unrecognised argument '" + arg + "'");
+            }
+            String option = arg.substring(2);
+            int separator = option.indexOf('=');
+            String key = (separator < 0 ? option : option.substring(0, separator)).replace('-', '.');
+            String value = separator < 0 ? "true" : option.substring(separator + 1);
+
+            if (key.equals("config")) {
+                file = value;
+            } else {
+                flags.setProperty(key, value);
+            }
+        }
+
+        Properties values = new Properties();
+        Path path = Paths.get(file != null ? file : DEFAULT_FILE);
+        if (file != null || Files.exists(path)) {
+            try (Reader reader = Files.newBufferedReader(path)) {
+                values.load(reader);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("cannot read " + path + ": " + e.getMessage());
+            }
+        }
+        values.putAll(flags);
+        return new CafeConfig(values);
+    }
+
+    // settings read by other tools sharing the same file and flags, such as the simulation
+    public String stringValue(String key, String fallback) {
+        return properties.getProperty(key, fallback).trim();
+    }
+
+    public int intValue(String key, int fallback, int minimum) {
+        String value = properties.getProperty(key);
+        if (value == null) {
+            return fallback;
+        }
+        try {
+            int parsed = Integer.parseInt(value.trim());
+            if (parsed < minimum) {
+                throw new IllegalArgumentException(key + " must be at least " + minimum);
+            }
+            return parsed;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(key + " must be a whole number, not '" + value + "'");
+        }
+    }
+
+    public double doubleValue(String key, double fallback, double minimum, double maximum) {
+        String value = properties.getProperty(key);
+        if (value == null) {
+            return fallback;
+        }
+        try {
+            double parsed = Double.parseDouble(value.trim());
+            if (!(parsed >= minimum && parsed <= maximum)) {
+                throw new IllegalArgumentException(key + " must be between " + minimum + " and " + maximum);
+            }
+            return parsed;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(key + " must be a number, not '" + value + "'");
+        }
+    }
+
+    public boolean booleanValue(String key) {
+        return Boolean.parseBoolean(stringValue(key, "false"));
+    }
+
+    // the address to listen on, where an empty host means every interface
+    public InetSocketAddress listenAddress() {
+        return host.isEmpty() ? new InetSocketAddress(port) : new InetSocketAddress(host, port);
+    }
+
+    // the prometheus endpoint's address, or null when metrics.port is 0 and the endpoint is off
+    public InetSocketAddress metricsAddress() {
+        if (metricsPort == 0) {
+            return null;
+        }
+        return metricsHost.isEmpty() ? new InetSocketAddress(metricsPort) : new InetSocketAddress(metricsHost, metricsPort);
+    }
+
+    public String describe() {
+        return "listening on: " + (host.isEmpty() ? "*" : host) + ":" + port + "\n" +
+                "mode: " + (useSelector ? "selector (" + ioThreads + " io threads, " +
+                (useVirtualThreads && SessionExecutors.virtualThreadsAvailable() ? "virtual" : String.valueOf(commandThreads)) +
+                " command threads)" :
+                useVirtualThreads ? "virtual thread per connection" : "thread per connection") + "\n" +
+                "brewing slots: " + teaSlots + " tea, " + coffeeSlots + " coffee\n" +
+                "brew times: " + teaBrewMillis + " ms tea, " + coffeeBrewMillis + " ms coffee\n" +
+                "brewing threads: " + brewThreads + "\n" +
+                "order limit: " + orderMaxDrinks + " drinks\n" +
+                "outbound limit: " + outboxHighWater + " bytes per customer\n" +
+                "metrics: " + (metricsPort == 0 ? "off" :
+                "http://" + (metricsHost.isEmpty() ? "*" : metricsHost) + ":" + metricsPort + "/metrics") + "\n" +
+                "stats command: " + (statsCommand ? "on" : "off") + "\n" +
+                "journal: " + (journalDir.isEmpty() ? "off" : journalDir + (journalSync ? " (fsync" : " (no fsync") +
+                ", snapshot every " + journalSnapshotRecords + " events, restored orders kept " +
+                (journalReclaimMillis == 0 ? "until reclaimed" : "for " + journalReclaimMillis / 1000 + " s") + ")") + "\n" +
+                "state log: " + logCapacity + " entries, " +
+                logOverflow.name().toLowerCase().replace('_', '-') + " on overflow";
+    }
+}
@@ -0,0 +1,111 @@
+package helpers;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+// all café counters live in one immutable, versioned block that is swapped atomically,
+// so a snapshot never mixes values from before and after a transition
+public class CafeCounters {
+
+    public static class Snapshot {
+        public final long version;
+        public final int totalCustomers;
+        public final int waitingCustomers;
+        public final int waitingTeas;
+        public final int waitingCoffees;
+        public final int brewingTeas;
+        public final int brewingCoffees;
+        public final int trayTeas;
+        public final int trayCoffees;
+
+        private Snapshot(long version, int totalCustomers, int waitingCustomers,
+                         int waitingTeas, int waitingCoffees, int brewingTeas, int brewingCoffees,
+                         int trayTeas, int trayCoffees) {
+            this.version = version;
+            this.totalCustomers = totalCustomers;
+            this.waitingCustomers = waitingCustomers;
+            this.waitingTeas = waitingTeas;
+            this.waitingCoffees = waitingCoffees;
+            this.brewingTeas = brewingTeas;
+            this.brewingCoffees = brewingCoffees;
+            this.trayTeas = trayTeas;
+            this.trayCoffees = trayCoffees;
+        }
+
+        private Snapshot plus(Delta delta) {
+            return new Snapshot(version + 1,
+                    totalCustomers + delta.totalCustomers,
+                    waitingCustomers + delta.waitingCustomers,
+                    waitingTeas + delta.waitingTeas,
+                    waitingCoffees + delta.waitingCoffees,
+                    brewingTeas + delta.brewingTeas,
+                    brewingCoffees + delta.brewingCoffees,
+                    trayTeas + delta.trayTeas,
+                    trayCoffees + delta.trayCoffees);
+        }
+    }
+
+    // the changes making up one logical transition, e.g. an item moving from waiting to brewing
+    public static class Delta {
+        private int totalCustomers;
+        private int waitingCustomers;
+        private int waitingTeas;
+        private int waitingCoffees;
+        private int brewingTeas;
+        private int brewingCoffees;
+        private int trayTeas;
+        private int trayCoffees;
+
+        public Delta customers(int delta) {
+            totalCustomers += delta;
+            return this;
+        }
+
+        public Delta waitingCustomers(int delta) {
+            waitingCustomers += delta;
+            return this;
+        }
+
+        public Delta waiting(int teas, int coffees) {
+            waitingTeas += teas;
+            waitingCoffees += coffees;
+            return this;
+        }
+
+        public Delta brewing(int teas, int coffees) {
+            brewingTeas += teas;
+            brewingCoffees += coffees;
+            return this;
+        }
+
+        public Delta tray(int teas, int coffees) {
+            trayTeas += teas;
+            trayCoffees += coffees;
+            return this;
+        }
+
+        public boolean isEmpty() {
+            return totalCustomers == 0 && waitingCustomers == 0 &&
+                    waitingTeas == 0 && waitingCoffees == 0 &&
+                    brewingTeas == 0 && brewingCoffees == 0 &&
+                    trayTeas == 0 && trayCoffees == 0;
+        }
+    }
+
+    private final AtomicReference<Snapshot> current =
+            new AtomicReference<>(new Snapshot(0, 0, 0, 0, 0, 0, 0, 0, 0));
+
+    public Snapshot snapshot() {
+        return current.get();
+    }
+
+    // applies every change in the delta as a single new version and returns that version
+    public Snapshot apply(Delta delta) {
+        while (true) {
+            Snapshot previous = current.get();
+            Snapshot next = previous.plus(delta);
+            if (current.compareAndSet(previous, next)) {
+                return next;
+            }
+        }
+    }
+}
@@ -0,0 +1,510 @@
+package helpers;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+// write ahead log of every order's lifecycle, so a restarted café picks up its waiting, brewing and tray
+// drinks where it left off. events are appended from the event loop as length prefixed binary records,
+// [int length][long lsn][byte type][payload][int crc32], and written by one thread that commits every
+// record queued since its last write with a single write and fsync. the journal keeps the live orders it
+// describes, and every snapshot.records events writes them as a compact snapshot and empties the log, so
+// a restart reads the snapshot and replays only the records after it
+public class CafeJournal implements Closeable {
+
+    private static final byte ORDER_PLACED = 1;
+    private static final byte ORDER_EXTENDED = 2;
+    private static final byte ITEM_DEQUEUED = 3;
+    private static final byte BREW_FINISHED = 4;
+    private static final byte ITEM_REPURPOSED = 5;
+    private static final byte ORDER_COLLECTED = 6;
+    private static final byte ORDER_CANCELLED = 7;
+
+    private static final int SNAPSHOT_MAGIC = 0x43414653;  // "CAFS"
+    private static final int SNAPSHOT_VERSION = 1;
+
+    public enum Stage { WAITING, BREWING, TRAY }
+
+    // one drink as the journal last recorded it
+    public static class JournalItem {
+        public final long id;
+        public final boolean isTea;
+        private long orderId;
+        private Stage stage = Stage.WAITING;
+        private long brewStartedMillis;
+
+        JournalItem(long id, boolean isTea, long orderId) {
+            this.id = id;
+            this.isTea = isTea;
+            this.orderId = orderId;
+        }
+
+        public Stage getStage() { return stage; }
+        public long getBrewStartedMillis() { return brewStartedMillis; }
+    }
+
+    public static class JournalOrder {
+        public final long id;
+        public final String customerName;
+        private final List<JournalItem> items = new ArrayList<>();
+
+        JournalOrder(long id, String customerName) {
+            this.id = id;
+            this.customerName = customerName;
+        }
+
+        public List<JournalItem> getItems() { return items; }
+    }
+
+    // the live orders in the order they were placed, owned by the event loop thread
+    private final Map<Long, JournalOrder> orders = new LinkedHashMap<>();
+    private final Map<Long, JournalItem> items = new LinkedHashMap<>();
+    private long maxOrderId;
+    private long maxItemId;
+
+    private final Path walPath;
+    private final Path snapshotPath;
+    private final boolean sync;
+    private final int snapshotEvery;
+    private final FileChannel wal;
+
+    // written by the event loop, and read by sessions to know which record to wait for
+    private volatile long lastLsn;
+    private int sinceSnapshot;
+
+    private record Pending(long lsn, byte[] bytes, boolean snapshot) { }
+
+    private static final Pending CLOSE = new Pending(-1, null, false);
+
+    private final LinkedBlockingQueue<Pending> pending = new LinkedBlockingQueue<>();
+    private final Thread writer;
+
+    // the highest lsn on disk, which callers wait on before answering a customer
+    private final ReentrantLock durableLock = new ReentrantLock();
+    private final Condition durableAdvanced = durableLock.newCondition();
+    private long durableLsn;
+    private volatile boolean failed;
+    private volatile boolean closed;
+
+    private CafeJournal(Path directory, boolean sync, int snapshotEvery) throws IOException {
+        Files.createDirectories(directory);
+        this.walPath = directory.resolve("journal.wal");
+        this.snapshotPath = directory.resolve("journal.snapshot");
+        this.sync = sync;
+        this.snapshotEvery = snapshotEvery;
+
+        long snapshotLsn = readSnapshot();
+        lastLsn = snapshotLsn;
+        replayLog(snapshotLsn);
+        durableLsn = lastLsn;
+
+        // the recovered state is compacted straight away, which also drops any torn record at the end of the log
+        writeSnapshot(serialiseSnapshot());
+        wal = FileChannel.open(walPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+
+        writer = new Thread(this::writeLoop, "cafe-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // opens the journal in the directory, recovering whatever a previous run left there
+    public static CafeJournal open(Path directory, boolean sync, int snapshotEvery) throws IOException {
+        return new CafeJournal(directory, sync, snapshotEvery);
+    }
+
+    // the orders still open when the previous run stopped, oldest first
+    public List<JournalOrder> getOrders() {
+        return new ArrayList<>(orders.values());
+    }
+
+    public long getMaxOrderId() { return maxOrderId; }
+    public long getMaxItemId() { return maxItemId; }
+
+    public long getLastLsn() {
+        return lastLsn;
+    }
+
+    // the appending methods below are called only from the event loop, right after the change they record
+
+    public void orderPlaced(Order order, List<Order.OrderItem> added) {
+        append(ORDER_PLACED, out -> {
+            out.writeLong(order.getId());
+            out.writeUTF(order.getCustomer().getCustomerName());
+            writeItems(out, added);
+        });
+    }
+
+    public void orderExtended(Order order, List<Order.OrderItem> added) {
+        append(ORDER_EXTENDED, out -> {
+            out.writeLong(order.getId());
+            writeItems(out, added);
+        });
+    }
+
+    public void itemDequeued(Order.OrderItem item, long startedMillis) {
+        append(ITEM_DEQUEUED, out -> {
+            out.writeLong(item.getId());
+            out.writeLong(startedMillis);
+        });
+    }
+
+    public void brewFinished(Order.OrderItem item) {
+        append(BREW_FINISHED, out -> out.writeLong(item.getId()));
+    }
+
+    public void itemRepurposed(Order.OrderItem item, Order.OrderItem replaced) {
+        append(ITEM_REPURPOSED, out -> {
+            out.writeLong(item.getId());
+            out.writeLong(replaced.getId());
+        });
+    }
+
+    public void orderCollected(Order order) {
+        append(ORDER_COLLECTED, out -> out.writeLong(order.getId()));
+    }
+
+    // the customer left, so every drink still belonging to the order is gone
+    public void orderCancelled(Order order) {
+        append(ORDER_CANCELLED, out -> out.writeLong(order.getId()));
+    }
+
+    private static void writeItems(DataOutputStream out, List<Order.OrderItem> added) throws IOException {
+        out.writeInt(added.size());
+        for (Order.OrderItem item : added) {
+            out.writeLong(item.getId());
+            out.writeBoolean(item.isTea());
+        }
+    }
+
+    private interface Payload {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private void append(byte type, Payload payload) {
+        if (failed || closed) {
+            return;
+        }
+        byte[] body = encodeBody(type, payload);
+        apply(new DataInputStream(new ByteArrayInputStream(body, 1, body.length - 1)), type);
+
+        long lsn = ++lastLsn;
+        pending.add(new Pending(lsn, frame(lsn, body), false));
+
+        if (++sinceSnapshot >= snapshotEvery) {
+            sinceSnapshot = 0;
+            pending.add(new Pending(lsn, serialiseSnapshot(), true));
+        }
+    }
+
+    private static byte[] encodeBody(byte type, Payload payload) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(type);
+            payload.write(out);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static byte[] frame(long lsn, byte[] body) {
+        ByteBuffer record = ByteBuffer.allocate(4 + 8 + body.length + 4);
+        record.putInt(8 + body.length).putLong(lsn).put(body);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, 8 + body.length);
+        record.putInt((int) crc.getValue());
+        return record.array();
+    }
+
+    // applies one record's payload to the live orders, both when appending and when replaying
+    private void apply(DataInputStream in, byte type) {
+        try {
+            switch (type) {
+                case ORDER_PLACED -> {
+                    long orderId = in.readLong();
+                    JournalOrder order = new JournalOrder(orderId, in.readUTF());
+                    orders.put(orderId, order);
+                    maxOrderId = Math.max(maxOrderId, orderId);
+                    readItems(in, order);
+                }
+                case ORDER_EXTENDED -> {
+                    JournalOrder order = orders.get(in.readLong());
+                    if (order != null) readItems(in, order);
+                }
+                case ITEM_DEQUEUED -> {
+                    JournalItem item = items.get(in.readLong());
+                    long started = in.readLong();
+                    if (item != null) {
+                        item.stage = Stage.BREWING;
+                        item.brewStartedMillis = started;
+                    }
+                }
+                case BREW_FINISHED -> {
+                    JournalItem item = items.get(in.readLong());
+                    if (item != null) item.stage = Stage.TRAY;
+                }
+                case ITEM_REPURPOSED -> {
+                    JournalItem item = items.get(in.readLong());
+                    JournalItem replaced = items.remove(in.readLong());
+                    if (item != null && replaced != null) {
+                        JournalOrder from = orders.get(item.orderId);
+                        JournalOrder to = orders.get(replaced.orderId);
+                        if (from != null) from.items.remove(item);
+                        if (to != null) {
+                            to.items.remove(replaced);
+                            to.items.add(item);
+                        }
+                        item.orderId = replaced.orderId;
+                    }
+                }
+                case ORDER_COLLECTED, ORDER_CANCELLED -> {
+                    JournalOrder order = orders.remove(in.readLong());
+                    if (order != null) {
+                        for (JournalItem item : order.items) {
+                            items.remove(item.id);
+                        }
+                    }
+                }
+                default -> throw new IOException("unknown journal record type " + type);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void readItems(DataInputStream in, JournalOrder order) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            JournalItem item = new JournalItem(in.readLong(), in.readBoolean(), order.id);
+            order.items.add(item);
+            items.put(item.id, item);
+            maxItemId = Math.max(maxItemId, item.id);
+        }
+    }
+
+    // reads framed records until the end of the stream or the first torn or corrupt one
+    private void readRecords(DataInputStream in, long afterLsn) throws IOException {
+        while (true) {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                return;
+            }
+            if (length < 9 || length > (1 << 24)) {
+                return;
+            }
+            byte[] record = new byte[length];
+            int checksum;
+            try {
+                in.readFully(record);
+                checksum = in.readInt();
+            } catch (EOFException e) {
+                return;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(record);
+            if ((int) crc.getValue() != checksum) {
+                return;
+            }
+
+            long lsn = ByteBuffer.wrap(record).getLong();
+            if (lsn > afterLsn) {
+                apply(new DataInputStream(new ByteArrayInputStream(record, 9, length - 9)), record[8]);
+                lastLsn = Math.max(lastLsn, lsn);
+            }
+        }
+    }
+
+    private long readSnapshot() throws IOException {
+        if (!Files.exists(snapshotPath)) {
+            return 0;
+        }
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(snapshotPath))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+                throw new IOException(snapshotPath + " is not a café journal snapshot");
+            }
+            long lsn = in.readLong();
+            maxOrderId = in.readLong();
+            maxItemId = in.readLong();
+            readRecords(in, -1);
+            return lsn;
+        }
+    }
+
+    private void replayLog(long snapshotLsn) throws IOException {
+        if (!Files.exists(walPath)) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(walPath))) {
+            readRecords(in, snapshotLsn);
+        }
+    }
+
+    // the live orders written as the records that would recreate them, behind a header with the lsn they reflect
+    private byte[] serialiseSnapshot() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeLong(lastLsn);
+            out.writeLong(maxOrderId);
+            out.writeLong(maxItemId);
+
+            for (JournalOrder order : orders.values()) {
+                out.write(frame(0, encodeBody(ORDER_PLACED, body -> {
+                    body.writeLong(order.id);
+                    body.writeUTF(order.customerName);
+                    body.writeInt(order.items.size());
+                    for (JournalItem item : order.items) {
+                        body.writeLong(item.id);
+                        body.writeBoolean(item.isTea);
+                    }
+                })));
+                for (JournalItem item : order.items) {
+                    if (item.stage != Stage.WAITING) {
+                        out.write(frame(0, encodeBody(ITEM_DEQUEUED, body -> {
+                            body.writeLong(item.id);
+                            body.writeLong(item.brewStartedMillis);
+                        })));
+                    }
+                    if (item.stage == Stage.TRAY) {
+                        out.write(frame(0, encodeBody(BREW_FINISHED, body -> body.writeLong(item.id))));
+                    }
+                }
+            }
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // replaced atomically, so a crash mid write leaves the previous snapshot in place
+    private void writeSnapshot(byte[] snapshot) throws IOException {
+        Path temporary = snapshotPath.resolveSibling(snapshotPath.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(snapshot);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temporary, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // group commit: everything queued while the previous batch was on its way to disk goes in the next one
+    private void writeLoop() {
+        List<Pending> batch = new ArrayList<>();
+        boolean closing = false;
+        try {
+            while (!closing) {
+                batch.add(pending.take());
+                pending.drainTo(batch);
+
+                List<ByteBuffer> records = new ArrayList<>();
+                long batchLsn = 0;
+                for (Pending entry : batch) {
+                    if (entry == CLOSE) {
+                        closing = true;
+                    } else if (entry.snapshot()) {
+                        // the records the snapshot covers go down first, then the log restarts empty behind it
+                        commit(records, batchLsn);
+                        records.clear();
+                        writeSnapshot(entry.bytes());
+                        wal.truncate(0);
+                        wal.position(0);
+                    } else {
+                        records.add(ByteBuffer.wrap(entry.bytes()));
+                        batchLsn = entry.lsn();
+                    }
+                }
+                commit(records, batchLsn);
+                batch.clear();
+            }
+            wal.close();
+            // nothing appended from now on is written, so nobody may wait for it
+            markDurable(Long.MAX_VALUE);
+        } catch (IOException e) {
+            System.err.println("error: journal write failed, no longer journaling: " + e.getMessage());
+            failed = true;
+            markDurable(Long.MAX_VALUE);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void commit(List<ByteBuffer> records, long lsn) throws IOException {
+        if (records.isEmpty()) {
+            return;
+        }
+        ByteBuffer[] buffers = records.toArray(new ByteBuffer[0]);
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        while (remaining > 0) {
+            remaining -= wal.write(buffers);
+        }
+        if (sync) {
+            wal.force(false);
+        }
+        markDurable(lsn);
+    }
+
+    private void markDurable(long lsn) {
+        durableLock.lock();
+        try {
+            durableLsn = Math.max(durableLsn, lsn);
+            durableAdvanced.signalAll();
+        } finally {
+            durableLock.unlock();
+        }
+    }
+
+    // waits until every record up to the lsn is on disk, so an acknowledged change survives a crash
+    public void awaitDurable(long lsn) {
+        durableLock.lock();
+        try {
+            while (durableLsn < lsn) {
+                durableAdvanced.awaitUninterruptibly();
+            }
+        } finally {
+            durableLock.unlock();
+        }
+    }
+
+    // writes out everything already appended, then stops the writer
+    @Override
+    public void close() {
+        closed = true;
+        pending.add(CLOSE);
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
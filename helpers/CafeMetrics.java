@@ -0,0 +1,70 @@
+package helpers;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// latency histograms for each customer command and for the time drinks spend in each area, reported
+// by the stats command so percentiles can be watched on a running server
+public class CafeMetrics {
+    private static final CommandParser.CommandType[] TRACKED = {
+            CommandParser.CommandType.ORDER, CommandParser.CommandType.BATCH, CommandParser.CommandType.STATUS,
+            CommandParser.CommandType.COLLECT, CommandParser.CommandType.EXIT
+    };
+
+    private final Map<CommandParser.CommandType, LatencyHistogram> commands =
+            new EnumMap<>(CommandParser.CommandType.class);
+
+    public final LatencyHistogram queueWait = new LatencyHistogram();
+    public final LatencyHistogram brewing = new LatencyHistogram();
+    public final LatencyHistogram trayDwell = new LatencyHistogram();
+
+    // running totals since the server started
+    public final AtomicLong connections = new AtomicLong();
+    public final AtomicLong repurposedItems = new AtomicLong();
+    public final AtomicLong cancelledItems = new AtomicLong();
+
+    public CafeMetrics() {
+        for (CommandParser.CommandType type : TRACKED) {
+            commands.put(type, new LatencyHistogram());
+        }
+    }
+
+    // only the tracked commands are recorded, so invalid input cannot skew the figures
+    public void recordCommand(CommandParser.CommandType type, long nanos) {
+        LatencyHistogram histogram = commands.get(type);
+        if (histogram != null) {
+            histogram.record(nanos);
+        }
+    }
+
+    public String format() {
+        StringBuilder stats = new StringBuilder("café stats:");
+        for (CommandParser.CommandType type : TRACKED) {
+            stats.append("\n- ").append(type.name().toLowerCase()).append(" command: ")
+                    .append(commands.get(type).summary());
+        }
+        stats.append("\n- queue wait: ").append(queueWait.summary());
+        stats.append("\n- brewing: ").append(brewing.summary());
+        stats.append("\n- tray dwell: ").append(trayDwell.summary());
+        return stats.toString();
+    }
+
+    public void writeTo(PrometheusText text) {
+        text.family("cafe_connections_total", "counter", "Customer connections that registered a name.")
+                .sample("cafe_connections_total", "", connections.get());
+        text.family("cafe_repurposed_items_total", "counter", "Drinks handed from a departing customer to a waiting one.")
+                .sample("cafe_repurposed_items_total", "", repurposedItems.get());
+        text.family("cafe_cancelled_items_total", "counter", "Drinks discarded because their customer left.")
+                .sample("cafe_cancelled_items_total", "", cancelledItems.get());
+
+        text.family("cafe_command_seconds", "summary", "Time to handle each customer command.");
+        for (CommandParser.CommandType type : TRACKED) {
+            text.summary("cafe_command_seconds", "command=\"" + type.name().toLowerCase() + "\"", commands.get(type));
+        }
+        text.family("cafe_drink_stage_seconds", "summary", "Time drinks spend waiting, brewing and on the tray.")
+                .summary("cafe_drink_stage_seconds", "stage=\"waiting\"", queueWait)
+                .summary("cafe_drink_stage_seconds", "stage=\"brewing\"", brewing)
+                .summary("cafe_drink_stage_seconds", "stage=\"tray\"", trayDwell);
+    }
+}
@@ -0,0 +1,288 @@
+package helpers;
+
+import java.nio.ByteBuffer;
+
+// single pass, regex free parser for customer commands, which fills a reusable ParsedCommand rather
+// than allocating results; it accepts and rejects exactly the lines the original regex rules did
+public class CommandParser {
+
+    public enum CommandType {
+        EXIT,
+        COLLECT,
+        STATUS,
+        ORDER,
+        BATCH,          // several line items of the customer's own order, summed, so the same as one ORDER of the totals
+        STATS,          // the admin command reporting the server's latency histograms
+        INVALID_ORDER,  // shaped like an order but with a zero, overflowing or ungrammatical quantity
+        INVALID
+    }
+
+    // the result of one parse, owned by a single session and overwritten by its next command
+    public static class ParsedCommand {
+        private CommandType type = CommandType.INVALID;
+        private int teas;
+        private int coffees;
+
+        // the quantity, item and plural of the "<n> tea(s)|coffee(s)" clause read last, kept here so
+        // parsing allocates nothing
+        private long quantity;
+        private boolean isTea;
+        private boolean isPlural;
+        private int end;
+
+        public CommandType getType() { return type; }
+        public int getTeas() { return teas; }
+        public int getCoffees() { return coffees; }
+
+        private ParsedCommand set(CommandType type, int teas, int coffees) {
+            this.type = type;
+            this.teas = teas;
+            this.coffees = coffees;
+            return this;
+        }
+    }
+
+    private static final long INT_OVERFLOW = -1;
+
+    public static ParsedCommand parse(CharSequence line, ParsedCommand into) {
+        if (line == null) {
+            return into.set(CommandType.INVALID, 0, 0);
+        }
+        if (equals(line, "collect")) return into.set(CommandType.COLLECT, 0, 0);
+        if (equals(line, "exit")) return into.set(CommandType.EXIT, 0, 0);
+        if (equals(line, "order status")) return into.set(CommandType.STATUS, 0, 0);
+        if (equals(line, "stats")) return into.set(CommandType.STATS, 0, 0);
+        if (startsWith(line, 0, "batch")) return parseBatch(line, into);
+        return parseOrder(line, into);
+    }
+
+    // the same commands read from a binary frame positioned at its type byte, see WireProtocol
+    public static ParsedCommand parse(ByteBuffer frame, ParsedCommand into) {
+        if (!frame.hasRemaining()) {
+            return into.set(CommandType.INVALID, 0, 0);
+        }
+        switch (frame.get()) {
+            case WireProtocol.COLLECT: return into.set(CommandType.COLLECT, 0, 0);
+            case WireProtocol.EXIT: return into.set(CommandType.EXIT, 0, 0);
+            case WireProtocol.STATUS: return into.set(CommandType.STATUS, 0, 0);
+            case WireProtocol.STATS: return into.set(CommandType.STATS, 0, 0);
+            case WireProtocol.ORDER:
+                if (frame.remaining() < 8) {
+                    return into.set(CommandType.INVALID_ORDER, 0, 0);
+                }
+                int teas = frame.getInt();
+                int coffees = frame.getInt();
+                // as with text, no negative or zero order and no total beyond an int
+                if (teas < 0 || coffees < 0 || (long) teas + coffees == 0 || (long) teas + coffees > Integer.MAX_VALUE) {
+                    return into.set(CommandType.INVALID_ORDER, 0, 0);
+                }
+                return into.set(CommandType.ORDER, teas, coffees);
+            case WireProtocol.BATCH:
+                if (frame.remaining() < 2) {
+                    return into.set(CommandType.INVALID_ORDER, 0, 0);
+                }
+                int items = frame.getShort() & 0xFFFF;
+                if (items == 0 || frame.remaining() < 8 * items) {
+                    return into.set(CommandType.INVALID_ORDER, 0, 0);
+                }
+                long totalTeas = 0, totalCoffees = 0;
+                for (int i = 0; i < items; i++) {
+                    int itemTeas = frame.getInt();
+                    int itemCoffees = frame.getInt();
+                    if (itemTeas < 0 || itemCoffees < 0 || (long) itemTeas + itemCoffees == 0) {
+                        return into.set(CommandType.INVALID_ORDER, 0, 0);
+                    }
+                    totalTeas += itemTeas;
+                    totalCoffees += itemCoffees;
+                }
+                if (totalTeas + totalCoffees > Integer.MAX_VALUE) {
+                    return into.set(CommandType.INVALID_ORDER, 0, 0);
+                }
+                return into.set(CommandType.BATCH, (int) totalTeas, (int) totalCoffees);
+            default: return into.set(CommandType.INVALID, 0, 0);
+        }
+    }
+
+    // batch order <n> <item> [and <n> <item>]; order ...; where every line item must be an order the
+    // single command would accept, so a batch is taken whole or not at all. each item is parsed from a
+    // view of its part of the line, the only allocation in the parser
+    private static ParsedCommand parseBatch(CharSequence line, ParsedCommand into) {
+        int length = line.length();
+        int position = skipWhitespace(line, 5);
+        if (position == 5 || position == length) {
+            return into.set(CommandType.INVALID, 0, 0);
+        }
+
+        long teas = 0, coffees = 0;
+        while (true) {
+            int separator = position;
+            while (separator < length && line.charAt(separator) != ';') {
+                separator++;
+            }
+            int itemEnd = separator;
+            while (itemEnd > position && isWhitespace(line.charAt(itemEnd - 1))) {
+                itemEnd--;
+            }
+
+            parseOrder(line.subSequence(position, itemEnd), into);
+            if (into.type != CommandType.ORDER) {
+                return into.set(CommandType.INVALID_ORDER, 0, 0);
+            }
+            teas += into.teas;
+            coffees += into.coffees;
+            if (teas + coffees > Integer.MAX_VALUE) {
+                return into.set(CommandType.INVALID_ORDER, 0, 0);
+            }
+
+            if (separator == length) {
+                return into.set(CommandType.BATCH, (int) teas, (int) coffees);
+            }
+            position = skipWhitespace(line, separator + 1);
+        }
+    }
+
+    // order <n> <item> [and <n> <item>], with any run of whitespace between the words
+    private static ParsedCommand parseOrder(CharSequence line, ParsedCommand into) {
+        int length = line.length();
+        if (!startsWith(line, 0, "order")) {
+            return into.set(CommandType.INVALID, 0, 0);
+        }
+
+        int position = skipWhitespace(line, 5);
+        if (position == 5) {
+            return into.set(CommandType.INVALID, 0, 0);
+        }
+
+        if (!readClause(line, position, into)) {
+            return into.set(CommandType.INVALID, 0, 0);
+        }
+        boolean firstValid = isValidQuantity(into);
+        long teas = into.isTea ? into.quantity : 0;
+        long coffees = into.isTea ? 0 : into.quantity;
+
+        boolean secondCounted = false;
+        boolean secondValid = true;
+        if (into.end < length) {
+            int andStart = skipWhitespace(line, into.end);
+            if (andStart == into.end || !startsWith(line, andStart, "and")) {
+                return into.set(CommandType.INVALID, 0, 0);
+            }
+            int afterAnd = skipWhitespace(line, andStart + 3);
+            if (afterAnd == andStart + 3) {
+                return into.set(CommandType.INVALID, 0, 0);
+            }
+            if (!readClause(line, afterAnd, into) || into.end != length) {
+                return into.set(CommandType.INVALID, 0, 0);
+            }
+
+            // the original split on the literal " and ", so other whitespace around it left the
+            // second clause uncounted
+            secondCounted = line.charAt(andStart - 1) == ' ' && line.charAt(andStart + 3) == ' ';
+            secondValid = isValidQuantity(into);
+        }
+
+        if (!firstValid) {
+            return into.set(CommandType.INVALID_ORDER, 0, 0);
+        }
+
+        if (secondCounted) {
+            if (!secondValid) {
+                return into.set(CommandType.INVALID_ORDER, 0, 0);
+            }
+            if (into.isTea) teas += into.quantity;
+            else coffees += into.quantity;
+            if (teas > Integer.MAX_VALUE || coffees > Integer.MAX_VALUE) {
+                return into.set(CommandType.INVALID_ORDER, 0, 0);
+            }
+        }
+        return into.set(CommandType.ORDER, (int) teas, (int) coffees);
+    }
+
+    // a positive quantity that fits in an int, with "s" exactly when there is more than one
+    private static boolean isValidQuantity(ParsedCommand clause) {
+        if (clause.quantity == INT_OVERFLOW || clause.quantity <= 0) {
+            return false;
+        }
+        return clause.isPlural == (clause.quantity > 1);
+    }
+
+    private static boolean readClause(CharSequence line, int position, ParsedCommand clause) {
+        int length = line.length();
+        int start = position;
+        long quantity = 0;
+
+        while (position < length && isDigit(line.charAt(position))) {
+            if (quantity != INT_OVERFLOW) {
+                quantity = quantity * 10 + (line.charAt(position) - '0');
+                if (quantity > Integer.MAX_VALUE) {
+                    quantity = INT_OVERFLOW;
+                }
+            }
+            position++;
+        }
+        if (position == start) {
+            return false;
+        }
+
+        int itemStart = skipWhitespace(line, position);
+        if (itemStart == position) {
+            return false;
+        }
+
+        if (startsWith(line, itemStart, "tea")) {
+            clause.isTea = true;
+            position = itemStart + 3;
+        } else if (startsWith(line, itemStart, "coffee")) {
+            clause.isTea = false;
+            position = itemStart + 6;
+        } else {
+            return false;
+        }
+
+        clause.isPlural = position < length && line.charAt(position) == 's';
+        if (clause.isPlural) {
+            position++;
+        }
+
+        // the item must end the clause, e.g. "teapot" is not a tea
+        if (position < length && !isWhitespace(line.charAt(position))) {
+            return false;
+        }
+
+        clause.quantity = quantity;
+        clause.end = position;
+        return true;
+    }
+
+    private static boolean equals(CharSequence line, String word) {
+        return line.length() == word.length() && startsWith(line, 0, word);
+    }
+
+    private static boolean startsWith(CharSequence line, int position, String word) {
+        if (position + word.length() > line.length()) {
+            return false;
+        }
+        for (int i = 0; i < word.length(); i++) {
+            if (line.charAt(position + i) != word.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int skipWhitespace(CharSequence line, int position) {
+        while (position < line.length() && isWhitespace(line.charAt(position))) {
+            position++;
+        }
+        return position;
+    }
+
+    // the same characters as \s in a java regex
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
@@ -0,0 +1,86 @@
+package helpers;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+// consistent hashing of keys, e.g. customer names, onto nodes, where each node owns many points on a
+// 64 bit ring so keys spread evenly and taking one node out only moves the keys it owned. the ring is
+// fixed once built, so lookups from any number of threads need no locking
+public class ConsistentHashRing<T> {
+    private static final double RING_SIZE = 0x1p64;
+
+    private final TreeMap<Long, T> ring = new TreeMap<>();
+    private final int nodes;
+
+    // nodes by a stable name, each placed at pointsPerNode positions derived from that name
+    public ConsistentHashRing(Map<String, T> nodesByName, int pointsPerNode) {
+        for (Map.Entry<String, T> node : nodesByName.entrySet()) {
+            for (int i = 0; i < pointsPerNode; i++) {
+                ring.put(hash(node.getKey() + "#" + i), node.getValue());
+            }
+        }
+        this.nodes = nodesByName.size();
+    }
+
+    // the first usable node clockwise from the key, or null when none is usable; a key keeps its node
+    // while that node stays usable, and moves to the same fallback every time while it is not
+    public T nodeFor(CharSequence key, Predicate<T> usable) {
+        if (ring.isEmpty()) {
+            return null;
+        }
+        long point = hash(key);
+        T found = firstUsable(ring.tailMap(point).values(), usable);
+        if (found == null) {
+            found = firstUsable(ring.headMap(point).values(), usable);
+        }
+        return found;
+    }
+
+    private T firstUsable(Collection<T> candidates, Predicate<T> usable) {
+        for (T node : candidates) {
+            if (usable.test(node)) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    public int size() {
+        return nodes;
+    }
+
+    // share of the ring each node owns, which is the share of keys it can expect
+    public Map<T, Double> ownership() {
+        Map<T, Double> shares = new HashMap<>();
+        if (ring.isEmpty()) {
+            return shares;
+        }
+        long previous = ring.lastKey();
+        for (Map.Entry<Long, T> point : ring.entrySet()) {
+            // the unsigned distance back to the previous point, wrapping round the ring for the first one
+            long span = point.getKey() - previous;
+            double unsigned = ring.size() == 1 ? RING_SIZE : (span >>> 1) * 2.0 + (span & 1);
+            shares.merge(point.getValue(), unsigned / RING_SIZE, Double::sum);
+            previous = point.getKey();
+        }
+        return shares;
+    }
+
+    // 64 bit FNV-1a over the characters, finished with murmur3's mixer so similar names land far apart
+    static long hash(CharSequence key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb34c62a6bb77L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
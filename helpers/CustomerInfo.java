@@ -12,6 +12,10 @@ public class CustomerInfo {
         this.customerName = customerName;
     }
 
+    public int getCustomerID() {
+        return customerID;
+    }
+
     public String getCustomerName() {
         return customerName;
     }
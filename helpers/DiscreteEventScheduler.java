@@ -0,0 +1,96 @@
+package helpers;
+
+import java.util.PriorityQueue;
+
+// single threaded scheduler over virtual time, where running the next event moves the clock straight
+// to that event's time instead of waiting for it
+public class DiscreteEventScheduler implements TaskScheduler, CafeClock {
+
+    private static class Event implements Comparable<Event> {
+        final long time;
+        final long sequence;
+        final Runnable task;
+        boolean cancelled = false;
+
+        Event(long time, long sequence, Runnable task) {
+            this.time = time;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        // events due at the same moment run in the order they were scheduled
+        @Override
+        public int compareTo(Event other) {
+            int byTime = Long.compare(time, other.time);
+            return byTime != 0 ? byTime : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private final PriorityQueue<Event> events = new PriorityQueue<>();
+    private long now;
+    private long sequence = 0;
+    private long processed = 0;
+
+    public DiscreteEventScheduler(long startMillis) {
+        this.now = startMillis;
+    }
+
+    @Override
+    public long millis() {
+        return now;
+    }
+
+    @Override
+    public long nanoTime() {
+        return now * 1_000_000;
+    }
+
+    public long getProcessedEvents() {
+        return processed;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        schedule(task, 0);
+    }
+
+    @Override
+    public Cancellable schedule(Runnable task, long delayMillis) {
+        Event event = new Event(now + Math.max(0, delayMillis), sequence++, task);
+        events.add(event);
+        return () -> {
+            boolean wasPending = !event.cancelled;
+            event.cancelled = true;
+            return wasPending && events.remove(event);
+        };
+    }
+
+    // runs every event due up to the end time, then leaves the clock at the end time
+    public void runUntil(long endMillis) {
+        while (!events.isEmpty() && events.peek().time <= endMillis) {
+            Event event = events.poll();
+            now = event.time;
+            if (!event.cancelled) {
+                processed++;
+                event.task.run();
+            }
+        }
+        now = Math.max(now, endMillis);
+    }
+
+    public boolean hasPendingEvents() {
+        return !events.isEmpty();
+    }
+
+    // runs until nothing is left to happen, e.g. the last customers of the day collecting their orders
+    public void runToCompletion() {
+        while (!events.isEmpty()) {
+            runUntil(events.peek().time);
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        events.clear();
+    }
+}
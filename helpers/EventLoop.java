@@ -0,0 +1,169 @@
+package helpers;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+// applies every change to the café's state on one dedicated thread, in the order the changes were
+// submitted to a multi producer queue, so the state itself needs no locks. an inline loop runs each
+// change on the calling thread instead, for the single threaded simulation and benchmarks
+public class EventLoop {
+
+    private static class Task<T> {
+        final Supplier<T> change;
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        final long submittedAt = System.nanoTime();
+
+        Task(Supplier<T> change) {
+            this.change = change;
+        }
+    }
+
+    private final ConcurrentLinkedQueue<Task<?>> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger depth = new AtomicInteger(0);
+    private final AtomicBoolean sleeping = new AtomicBoolean(false);
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    private final LatencyHistogram waitTimes = new LatencyHistogram();
+    private final LatencyHistogram runTimes = new LatencyHistogram();
+
+    private EventLoop(String name) {
+        if (name == null) {
+            thread = null;
+            return;
+        }
+        thread = new Thread(this::loop, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public static EventLoop start(String name) {
+        return new EventLoop(name);
+    }
+
+    public static EventLoop inline() {
+        return new EventLoop(null);
+    }
+
+    public boolean inEventLoop() {
+        return thread == null || Thread.currentThread() == thread;
+    }
+
+    public <T> CompletableFuture<T> submit(Supplier<T> change) {
+        Task<T> task = new Task<>(change);
+        if (thread == null) {
+            apply(task);
+            return task.result;
+        }
+        if (!running) {
+            task.result.completeExceptionally(new RejectedExecutionException("event loop is shut down"));
+            return task.result;
+        }
+
+        depth.incrementAndGet();
+        queue.offer(task);
+        // the loop may have stopped between the check above and the offer, so take the task back
+        if (!running && queue.remove(task)) {
+            depth.decrementAndGet();
+            task.result.completeExceptionally(new RejectedExecutionException("event loop is shut down"));
+            return task.result;
+        }
+        // the loop only parks after announcing it, so a wake up is never missed
+        if (sleeping.get() && sleeping.compareAndSet(true, false)) {
+            LockSupport.unpark(thread);
+        }
+        return task.result;
+    }
+
+    // submits without waiting, for timers and other changes nobody needs an answer from
+    public void execute(Runnable change) {
+        submit(() -> {
+            change.run();
+            return null;
+        }).exceptionally(e -> {
+            System.err.println("error: " + e.getMessage());
+            return null;
+        });
+    }
+
+    // submits and waits for the result, or applies the change directly when already on the loop
+    public <T> T call(Supplier<T> change) {
+        if (inEventLoop()) {
+            return change.get();
+        }
+        try {
+            return submit(change).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    public void run(Runnable change) {
+        call(() -> {
+            change.run();
+            return null;
+        });
+    }
+
+    private <T> void apply(Task<T> task) {
+        long start = System.nanoTime();
+        waitTimes.record(start - task.submittedAt);
+        try {
+            task.result.complete(task.change.get());
+        } catch (RuntimeException e) {
+            task.result.completeExceptionally(e);
+        } finally {
+            runTimes.recordSince(start);
+        }
+    }
+
+    private void loop() {
+        while (true) {
+            Task<?> task = queue.poll();
+            if (task != null) {
+                depth.decrementAndGet();
+                apply(task);
+                continue;
+            }
+            if (!running) {
+                return;
+            }
+
+            sleeping.set(true);
+            if (queue.isEmpty() && running) {
+                LockSupport.park(this);
+            }
+            sleeping.set(false);
+        }
+    }
+
+    // applies the changes already queued, then stops; later submissions are rejected
+    public void shutdown() {
+        running = false;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    public int getQueueDepth() {
+        return depth.get();
+    }
+
+    // from submission until the change starts being applied
+    public LatencyHistogram getWaitTimes() {
+        return waitTimes;
+    }
+
+    public LatencyHistogram getRunTimes() {
+        return runTimes;
+    }
+}
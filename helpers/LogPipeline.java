@@ -0,0 +1,163 @@
+package helpers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+// moves state logging off the caller's thread, where callers only place a snapshot in a ring buffer
+// and a single consumer thread prints and writes whole batches at once
+public class LogPipeline {
+
+    // what a producer does when the ring buffer is full
+    public enum OverflowPolicy {
+        BLOCK,          // wait for the consumer to free a slot, only for producers that may be held up
+        DROP_OLDEST,    // discard the oldest queued snapshot to make room
+        COALESCE;       // keep only the most recent snapshot until the consumer catches up
+
+        public static OverflowPolicy parse(String value) {
+            try {
+                return OverflowPolicy.valueOf(value.trim().toUpperCase().replace('-', '_'));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("log overflow policy must be block, drop-oldest or coalesce, not '" + value + "'");
+            }
+        }
+    }
+
+    private static final int MAX_BATCH = 256;
+
+    private final RingBuffer<StateLogger.LogEntry> ring;
+    private final OverflowPolicy policy;
+    private final boolean printToConsole;
+
+    // with coalescing, the newest snapshot that did not fit in the ring waits here
+    private final AtomicReference<StateLogger.LogEntry> overflow = new AtomicReference<>();
+
+    private final AtomicLong dropped = new AtomicLong(0);
+    private final AtomicLong coalesced = new AtomicLong(0);
+
+    private final Thread consumer;
+    private volatile boolean consumerParked = false;
+    private volatile boolean running = true;
+
+    public LogPipeline(int capacity, OverflowPolicy policy, boolean printToConsole) {
+        this.ring = new RingBuffer<>(capacity);
+        this.policy = policy;
+        this.printToConsole = printToConsole;
+        this.consumer = new Thread(this::consume, "state-logger");
+        this.consumer.setDaemon(true);
+        this.consumer.start();
+    }
+
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    public void submit(StateLogger.State state) {
+        StateLogger.LogEntry entry = new StateLogger.LogEntry(state);
+
+        if (!running) {
+            // late snapshots after shutdown are written directly so none go missing
+            StateLogger.append(List.of(entry), false);
+            return;
+        }
+
+        switch (policy) {
+            case BLOCK -> {
+                while (!ring.offer(entry)) {
+                    wakeConsumer();
+                    LockSupport.parkNanos(50_000);
+                }
+            }
+            case DROP_OLDEST -> {
+                while (!ring.offer(entry)) {
+                    if (ring.poll() != null) {
+                        dropped.incrementAndGet();
+                    }
+                }
+            }
+            case COALESCE -> {
+                // once one snapshot has overflowed, newer ones replace it so the order of entries is kept
+                if (overflow.get() != null || !ring.offer(entry)) {
+                    if (overflow.getAndSet(entry) != null) {
+                        coalesced.incrementAndGet();
+                    }
+                }
+            }
+        }
+        wakeConsumer();
+    }
+
+    private void wakeConsumer() {
+        if (consumerParked) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    private void consume() {
+        List<StateLogger.LogEntry> batch = new ArrayList<>(MAX_BATCH);
+
+        while (running || !ring.isEmpty() || overflow.get() != null) {
+            drainInto(batch);
+
+            if (batch.isEmpty()) {
+                consumerParked = true;
+                if (ring.isEmpty() && overflow.get() == null && running) {
+                    LockSupport.parkNanos(10_000_000);
+                }
+                consumerParked = false;
+                continue;
+            }
+
+            writeBatch(batch);
+            batch.clear();
+        }
+    }
+
+    private void drainInto(List<StateLogger.LogEntry> batch) {
+        StateLogger.LogEntry entry;
+        while (batch.size() < MAX_BATCH && (entry = ring.poll()) != null) {
+            batch.add(entry);
+        }
+
+        if (batch.size() < MAX_BATCH && ring.isEmpty()) {
+            StateLogger.LogEntry latest = overflow.getAndSet(null);
+            if (latest != null) {
+                batch.add(latest);
+            }
+        }
+    }
+
+    private void writeBatch(List<StateLogger.LogEntry> batch) {
+        if (printToConsole) {
+            StringBuilder banners = new StringBuilder();
+            for (StateLogger.LogEntry entry : batch) {
+                banners.append(StateLogger.formatBanner(entry.state)).append("\n");
+            }
+            System.out.print(banners);
+        }
+
+        // one write and one fsync for the whole batch
+        StateLogger.append(batch, true);
+    }
+
+    // stops accepting work into the ring and waits for queued snapshots to be written
+    public void close() {
+        running = false;
+        LockSupport.unpark(consumer);
+        try {
+            consumer.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
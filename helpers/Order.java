@@ -4,26 +4,42 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 // handles a single customer order
 public class Order {
+    // stable ids for orders and drinks, which the journal uses to refer to them across restarts
+    private static final AtomicLong orderIds = new AtomicLong(0);
+    private static final AtomicLong itemIds = new AtomicLong(0);
+
     // handles a single item
     public static class OrderItem {
         private enum Type { TEA, COFFEE }
         private enum Status { WAITING, BREWING, TRAY }
 
+        private final long id;
         private final Type type;
         private volatile Status status;
         private volatile boolean cancelled = false;
         private volatile boolean repurposed = false;
         private volatile Order order;
+        // when the item entered its current area, for the queue wait, brewing and tray dwell histograms
+        private volatile long stageStartedNanos;
 
         public OrderItem(boolean isTea, Order order) {
+            this(itemIds.incrementAndGet(), isTea, order);
+        }
+
+        private OrderItem(long id, boolean isTea, Order order) {
+            this.id = id;
             this.type = isTea ? Type.TEA : Type.COFFEE;
             this.order = order;
             setToWaiting();
         }
 
+        public long getId() { return id; }
+
         public boolean isTea() { return type == Type.TEA; }
         public boolean isCoffee() { return type == Type.COFFEE; }
 
@@ -31,20 +47,44 @@ public class Order {
         public boolean isBrewing() { return status == Status.BREWING; }
         public boolean isOnTray() { return status == Status.TRAY; }
 
-        public synchronized void setToWaiting() { status = Status.WAITING; }
-        public synchronized void setToBrewing() { status = Status.BREWING; }
-        public synchronized void setToTray() { status = Status.TRAY; }
+        public synchronized void setToWaiting() { moveTo(Status.WAITING); }
+        public synchronized void setToBrewing() { moveTo(Status.BREWING); }
+        public synchronized void setToTray() { moveTo(Status.TRAY); }
+
+        // every move is mirrored in the owning order's per area counts, so its status never scans an area
+        private void moveTo(Status next) {
+            if (!cancelled) {
+                if (status != null) order.count(this, status, -1);
+                order.count(this, next, 1);
+            }
+            status = next;
+        }
+
+        public long getStageStartedNanos() {
+            return stageStartedNanos;
+        }
+
+        public void setStageStartedNanos(long nanos) {
+            this.stageStartedNanos = nanos;
+        }
 
         public Order getOrder() {
             return order;
         }
 
         public synchronized void updateOrder(Order newOrder) {
+            if (!cancelled) {
+                order.count(this, status, -1);
+                newOrder.count(this, status, 1);
+            }
             this.order = newOrder;
         }
 
         // orders are cancelled if a customer leaves the cafe
         public synchronized void setCancelled(boolean cancelled) {
+            if (this.cancelled != cancelled) {
+                order.count(this, status, cancelled ? -1 : 1);
+            }
             this.cancelled = cancelled;
         }
 
@@ -82,17 +122,97 @@ public class Order {
         }
     }
 
+    // uncancelled teas and coffees of this order in each area at one moment
+    public static class AreaCounts {
+        public final int waitingTeas;
+        public final int waitingCoffees;
+        public final int brewingTeas;
+        public final int brewingCoffees;
+        public final int trayTeas;
+        public final int trayCoffees;
+
+        // waiting, brewing and tray teas and coffees, in that order
+        public AreaCounts(int[] counts) {
+            this.waitingTeas = counts[0];
+            this.waitingCoffees = counts[1];
+            this.brewingTeas = counts[2];
+            this.brewingCoffees = counts[3];
+            this.trayTeas = counts[4];
+            this.trayCoffees = counts[5];
+        }
+
+        // the order status reply, shared by the server's text protocol and the binary client
+        public String format(String customerName) {
+            StringBuilder status = new StringBuilder();
+
+            status.append("order status for ").append(customerName).append(":");
+
+            if (waitingTeas > 0 || waitingCoffees > 0) {
+                status.append("\n- ").append(formatItems(waitingTeas, waitingCoffees)).append(" in waiting area");
+            }
+
+            if (brewingTeas > 0 || brewingCoffees > 0) {
+                status.append("\n- ").append(formatItems(brewingTeas, brewingCoffees)).append(" currently brewing");
+            }
+
+            if (trayTeas > 0 || trayCoffees > 0) {
+                status.append("\n- ").append(formatItems(trayTeas, trayCoffees)).append(" on the tray");
+            }
+
+            return status.toString();
+        }
+    }
+
+    private final long id;
     private final CustomerInfo customer;
     private final List<OrderItem> items;
+    // tea and coffee counts per area, indexed by status ordinal * 2 plus 1 for coffee, guarded by lock
+    private final int[] areaCounts = new int[6];
+    // items not yet on the tray, so the drink that lands last is the one that completes the order
+    private final AtomicInteger outstanding = new AtomicInteger(0);
     private volatile boolean readyForCollection = false;
     private final Object lock = new Object();
 
     public Order(CustomerInfo customer, int teas, int coffees) {
+        this(orderIds.incrementAndGet(), customer);
+        addItems(teas, coffees);
+    }
+
+    private Order(long id, CustomerInfo customer) {
+        this.id = id;
         this.customer = customer;
         this.items = new ArrayList<>();
-        addItems(teas, coffees);
     }
 
+    // an order rebuilt from the journal, whose drinks are added back with restoreItem
+    public static Order restore(long id, CustomerInfo customer) {
+        reserveIds(id, 0);
+        return new Order(id, customer);
+    }
+
+    // puts back a drink in the area it was in, counting it as outstanding unless it is already on the tray
+    public OrderItem restoreItem(long itemId, boolean isTea, boolean brewing, boolean onTray) {
+        reserveIds(0, itemId);
+        OrderItem item = new OrderItem(itemId, isTea, this);
+        if (brewing) item.setToBrewing();
+        if (onTray) item.setToTray();
+        synchronized (lock) {
+            items.add(item);
+            if (!onTray) {
+                outstanding.incrementAndGet();
+            }
+        }
+        return item;
+    }
+
+    // keeps new ids above the ones read back from the journal
+    public static void reserveIds(long orderId, long itemId) {
+        orderIds.accumulateAndGet(orderId, Math::max);
+        itemIds.accumulateAndGet(itemId, Math::max);
+    }
+
+    public long getId() { return id; }
+
     public CustomerInfo getCustomer() { return customer; }
 
     public List<OrderItem> getItems() {
@@ -111,8 +231,30 @@ public class Order {
         return items.isEmpty();
     }
 
-    public void addItems(int teas, int coffees) {
+    private void count(OrderItem item, OrderItem.Status status, int change) {
+        synchronized (lock) {
+            areaCounts[status.ordinal() * 2 + (item.isTea() ? 0 : 1)] += change;
+        }
+    }
+
+    public AreaCounts getAreaCounts() {
         synchronized (lock) {
+            return new AreaCounts(areaCounts);
+        }
+    }
+
+    // returns the new items, which are the ones to place in the waiting area
+    public List<OrderItem> addItems(int teas, int coffees) {
+        synchronized (lock) {
+            // a completed order cannot grow, even if its last drink landed while this update was on its way
+            int current;
+            do {
+                current = outstanding.get();
+                if (current == 0 && !items.isEmpty()) {
+                    throw new IllegalStateException("order is already complete");
+                }
+            } while (!outstanding.compareAndSet(current, current + teas + coffees));
+
             List<OrderItem> newItems = new ArrayList<>();
 
             for (int i = 0; i < teas; i++) {
@@ -125,9 +267,15 @@ public class Order {
             }
 
             items.addAll(newItems);
+            return newItems;
         }
     }
 
+    // called as one of this order's drinks reaches the tray, returning true for the drink that completes it
+    public boolean itemLanded() {
+        return outstanding.decrementAndGet() == 0;
+    }
+
     public boolean isReadyForCollection() {
         return readyForCollection;
     }
@@ -146,15 +294,22 @@ public class Order {
                                 orderItem.isTea() == item.isTea());
     }
 
-    public void repurposeItem(OrderItem item) {
-        items.removeIf(orderItem ->
-                orderItem.isWaiting() &&
-                        !orderItem.isCancelled() &&
-                        orderItem.isTea() == item.isTea());
-
-        items.add(item);
+    // the repurposed item takes the place of the given waiting item, which leaves the order entirely,
+    // returning true when a drink already on the tray was the last one this order needed
+    public boolean repurposeItem(OrderItem item, OrderItem replaced) {
+        synchronized (lock) {
+            for (int i = 0; i < items.size(); i++) {
+                if (items.get(i) == replaced) {
+                    items.remove(i);
+                    break;
+                }
+            }
+            items.add(item);
+        }
+        replaced.setCancelled(true);
         item.updateOrder(this);
         item.setRepurposed(true);
+        return item.isOnTray() && itemLanded();
     }
 
     public static int countItemsByType(List<OrderItem> items, boolean isTea) {
@@ -165,10 +320,11 @@ public class Order {
 
     public String formatOrderItems() {
         if (hasEmptyItems()) return "no items";
+        return formatItems(getTeas(), getCoffees());
+    }
 
+    public static String formatItems(int teas, int coffees) {
         StringBuilder sb = new StringBuilder();
-        int teas = getTeas();
-        int coffees = getCoffees();
 
         if (teas > 0) {
             sb.append(teas).append(" tea").append(teas > 1 ? "s" : "");
@@ -1,11 +1,22 @@
 package helpers;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 public class OrderListeners {
-    private static final Map<CustomerInfo, OrderListener> orderListeners = new HashMap<>();
-    private static final Object lock = new Object();
+    // registrations keyed by customer id, with the latest customer of each name indexed for lookups by name
+    private static final ConcurrentHashMap<Integer, Registration> listeners = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Integer> idsByName = new ConcurrentHashMap<>();
+
+    // listeners write to sockets, so they run on a shared pool rather than the brewing or disconnecting thread
+    private static volatile Executor dispatcher = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "order-listener");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public interface OrderListener {
         void onOrderCompleted(Order order);
@@ -13,42 +24,96 @@ public class OrderListeners {
                                String toCustomer, String toLocation);
     }
 
-    public static void registerListener(CustomerInfo customer, OrderListener listener) {
-        synchronized (lock) {
-            orderListeners.put(customer, listener);
+    // one listener with its own queue, so notifications for a customer arrive in order while
+    // notifications for different customers run in parallel
+    private static class Registration implements Runnable {
+        final CustomerInfo customer;
+        final OrderListener listener;
+        private final Queue<Runnable> pending = new ArrayDeque<>();
+        private boolean scheduled = false;
+
+        Registration(CustomerInfo customer, OrderListener listener) {
+            this.customer = customer;
+            this.listener = listener;
         }
-    }
 
-    public static void notifyOrderCompleted(Order order) {
-        synchronized (lock) {
-            if (order.hasEmptyItems()) {
-                return;
+        void dispatch(Runnable notification) {
+            synchronized (this) {
+                pending.add(notification);
+                if (scheduled) return;
+                scheduled = true;
             }
+            dispatcher.execute(this);
+        }
 
-            OrderListener listener = orderListeners.get(order.getCustomer());
-            if (listener != null) {
-                order.setReadyForCollection(true);
-                listener.onOrderCompleted(order);
+        @Override
+        public void run() {
+            while (true) {
+                Runnable next;
+                synchronized (this) {
+                    next = pending.poll();
+                    if (next == null) {
+                        scheduled = false;
+                        return;
+                    }
+                }
+                try {
+                    next.run();
+                } catch (RuntimeException e) {
+                    System.err.println("error notifying " + customer.getCustomerName() + ": " + e.getMessage());
+                }
             }
         }
     }
 
+    // e.g. Runnable::run in a simulation, where every notification must happen on the simulation thread
+    public static void setDispatcher(Executor executor) {
+        dispatcher = executor;
+    }
+
+    public static void registerListener(CustomerInfo customer, OrderListener listener) {
+        listeners.put(customer.getCustomerID(), new Registration(customer, listener));
+        idsByName.put(customer.getCustomerName(), customer.getCustomerID());
+    }
+
+    // called when a customer leaves, so neither index keeps departed customers
+    public static void unregisterListener(CustomerInfo customer) {
+        listeners.remove(customer.getCustomerID());
+        idsByName.remove(customer.getCustomerName(), customer.getCustomerID());
+    }
+
+    public static void notifyOrderCompleted(Order order) {
+        if (order.hasEmptyItems()) {
+            return;
+        }
+
+        // set even with nobody listening, e.g. for an order restored from the journal before its customer returns
+        order.setReadyForCollection(true);
+        Registration registration = listeners.get(order.getCustomer().getCustomerID());
+        if (registration != null) {
+            registration.dispatch(() -> registration.listener.onOrderCompleted(order));
+        }
+    }
+
+    public static void notifyOrderRepurposed(CustomerInfo toCustomer, String itemType, String fromCustomer,
+                                             String fromLocation, String toLocation) {
+        notifyRepurposed(listeners.get(toCustomer.getCustomerID()), itemType, fromCustomer, fromLocation,
+                toCustomer.getCustomerName(), toLocation);
+    }
+
     public static void notifyOrderRepurposed(String itemType, String fromCustomer, String fromLocation,
                                              String toCustomer, String toLocation) {
-        synchronized (lock) {
-            OrderListener listener = null;
-            for (Map.Entry<CustomerInfo, OrderListener> entry : orderListeners.entrySet()) {
-                if (entry.getKey().getCustomerName().equals(toCustomer)) {
-                    listener = entry.getValue();
-                    break;
-                }
-            }
+        Integer id = idsByName.get(toCustomer);
+        notifyRepurposed(id == null ? null : listeners.get(id), itemType, fromCustomer, fromLocation,
+                toCustomer, toLocation);
+    }
 
-            if (listener != null) {
-                listener.onOrderRepurposed(itemType, fromCustomer, fromLocation,
-                        toCustomer, toLocation);
-            }
+    private static void notifyRepurposed(Registration registration, String itemType, String fromCustomer,
+                                         String fromLocation, String toCustomer, String toLocation) {
+        if (registration != null) {
+            registration.dispatch(() -> registration.listener.onOrderRepurposed(itemType, fromCustomer,
+                    fromLocation, toCustomer, toLocation));
         }
     }
 
-}
\ No newline at end of file
+}
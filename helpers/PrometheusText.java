@@ -0,0 +1,49 @@
+package helpers;
+
+// builds a scrape in the prometheus text exposition format, one metric family at a time, e.g.
+// family("cafe_drinks", "gauge", "...") followed by sample("cafe_drinks", "area=\"tray\"", 3)
+public class PrometheusText {
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final StringBuilder text = new StringBuilder();
+
+    public PrometheusText family(String name, String type, String help) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        return this;
+    }
+
+    // labels are written as given, e.g. area="waiting",type="tea", or empty for none
+    public PrometheusText sample(String name, String labels, double value) {
+        text.append(name);
+        if (!labels.isEmpty()) {
+            text.append('{').append(labels).append('}');
+        }
+        text.append(' ');
+        if (value == Math.rint(value) && !Double.isInfinite(value)) {
+            text.append((long) value);
+        } else {
+            text.append(value);
+        }
+        text.append('\n');
+        return this;
+    }
+
+    // a summary in seconds from a nanosecond histogram, with its quantiles, sum and count
+    public PrometheusText summary(String name, String labels, LatencyHistogram histogram) {
+        String prefix = labels.isEmpty() ? "" : labels + ",";
+        for (double quantile : QUANTILES) {
+            sample(name, prefix + "quantile=\"" + quantile + "\"", histogram.getPercentile(quantile * 100) / 1e9);
+        }
+        sample(name + "_sum", labels, histogram.getSum() / 1e9);
+        sample(name + "_count", labels, histogram.getCount());
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return text.toString();
+    }
+}
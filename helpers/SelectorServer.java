@@ -0,0 +1,543 @@
+package helpers;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// non-blocking line based server, where a small pool of selector threads moves the bytes of every connection
+// instead of one blocked thread per customer; a connection may switch to WireProtocol frames after any line
+public class SelectorServer {
+
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_LINE_LENGTH = 8 * 1024;
+    private static final int MAX_GATHER = 64;
+    // received bytes a session may fall behind by before its connection stops being read
+    private static final int MAX_UNCONSUMED = 4 * READ_BUFFER_SIZE;
+
+    // callbacks for one connection, invoked one at a time in the order the lines arrive, on a worker rather
+    // than the selector thread, so a callback may block (e.g. on the journal) without stalling other connections
+    public interface Connection {
+        void onOpen();
+
+        // returns true once the connection should be closed, after pending output is sent
+        boolean onLine(String line);
+
+        // checked after every line, and once true the rest of the input is read as binary frames
+        default boolean isBinary() {
+            return false;
+        }
+
+        // one frame's type and payload, only valid during the call; returns true to close, as onLine
+        default boolean onFrame(ByteBuffer frame) {
+            return true;
+        }
+
+        void onClose();
+    }
+
+    public interface ConnectionFactory {
+        Connection create(PrintWriter out, WireProtocol.FrameSink frames, Closeable closer);
+    }
+
+    private final InetSocketAddress address;
+    private final long highWaterBytes;
+    private final ConnectionFactory factory;
+    // runs each connection's framing and callbacks, one task of a connection at a time
+    private final Executor sessionExecutor;
+    private final IoLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger(0);
+    private final AtomicInteger openConnections = new AtomicInteger(0);
+
+    private volatile boolean running = true;
+    private ServerSocketChannel serverChannel;
+
+    // a connection with more than highWaterBytes of unsent output is closed instead of buffered further
+    public SelectorServer(InetSocketAddress address, int ioThreads, long highWaterBytes,
+                          Executor sessionExecutor, ConnectionFactory factory) throws IOException {
+        this.address = address;
+        this.highWaterBytes = highWaterBytes;
+        this.sessionExecutor = sessionExecutor;
+        this.factory = factory;
+        this.loops = new IoLoop[Math.max(1, ioThreads)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new IoLoop("selector-io-" + i);
+        }
+    }
+
+    public int getOpenConnections() {
+        return openConnections.get();
+    }
+
+    // accepts connections on the calling thread until the server is closed
+    public void run() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address, 1024);
+
+        for (IoLoop loop : loops) {
+            loop.thread.start();
+        }
+
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)].register(channel);
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("error: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    public void close() {
+        running = false;
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException ignored) {
+        }
+        for (IoLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+    }
+
+    // runs one connection's tasks one at a time and in order, on whichever thread of the pool is free
+    private static class SerialExecutor implements Executor {
+        private final Executor pool;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        SerialExecutor(Executor pool) {
+            this.pool = pool;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+            schedule();
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                pool.execute(this::drain);
+            }
+        }
+
+        private void drain() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+            scheduled.set(false);
+            // a task added between the last poll and clearing the flag would otherwise wait for the next one
+            if (!tasks.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+
+    // state for one accepted channel, attached to its selection key
+    private class ChannelConnection implements Closeable {
+        private final SocketChannel channel;
+        private final IoLoop loop;
+        private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+        private final AtomicLong queuedBytes = new AtomicLong(0);
+        private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+        private final AtomicBoolean writeRequested = new AtomicBoolean(false);
+        private final SerialExecutor session = new SerialExecutor(sessionExecutor);
+        private final AtomicLong unconsumedBytes = new AtomicLong(0);
+        private volatile boolean readPaused = false;
+        private Connection connection;
+        private SelectionKey key;
+
+        // bytes of a line or frame that has not been completed yet, only allocated when one spans reads; this
+        // and the binary flag are only touched by the connection's session tasks
+        private ByteArrayOutputStream partialLine;
+        private boolean binary = false;
+        private volatile boolean closeAfterFlush = false;
+
+        ChannelConnection(SocketChannel channel, IoLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+        }
+
+        void enqueue(ByteBuffer bytes) {
+            if (closed.get()) return;
+            outbound.add(bytes);
+            if (queuedBytes.addAndGet(bytes.remaining()) > highWaterBytes) {
+                // a customer that stops reading is dropped rather than holding ever more output
+                closeNow();
+                return;
+            }
+            requestWrite();
+        }
+
+        void requestWrite() {
+            if (Thread.currentThread() == loop.thread) {
+                flushOutbound();
+            } else if (writeRequested.compareAndSet(false, true)) {
+                loop.pendingWrites.add(this);
+                loop.selector.wakeup();
+            }
+        }
+
+        void flushOutbound() {
+            writeRequested.set(false);
+            if (closed.get() || key == null || !key.isValid()) return;
+
+            try {
+                while (!outbound.isEmpty()) {
+                    // every queued message goes out in one gathering write where the socket allows
+                    int count = 0;
+                    long requested = 0;
+                    for (ByteBuffer buffer : outbound) {
+                        gather[count++] = buffer;
+                        requested += buffer.remaining();
+                        if (count == MAX_GATHER) break;
+                    }
+                    long written = channel.write(gather, 0, count);
+                    queuedBytes.addAndGet(-written);
+
+                    for (int i = 0; i < count; i++) {
+                        if (!gather[i].hasRemaining()) {
+                            outbound.poll();
+                        }
+                        gather[i] = null;
+                    }
+                    if (written < requested) {
+                        // socket buffer is full, so wait until the selector reports it writable again
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+
+                if (closeAfterFlush) {
+                    closeNow();
+                }
+            } catch (IOException | CancelledKeyException e) {
+                closeNow();
+            }
+        }
+
+        // copies what the socket has to the session's queue, so only the session's worker parses and handles it
+        void readAvailable(ByteBuffer readBuffer) {
+            try {
+                while (!closeAfterFlush) {
+                    readBuffer.clear();
+                    int read = channel.read(readBuffer);
+                    if (read < 0) {
+                        // what arrived before the end is still handled, then its replies are sent before closing
+                        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                        runSession(this::close);
+                        return;
+                    }
+                    if (read == 0) {
+                        return;
+                    }
+                    readBuffer.flip();
+                    ByteBuffer received = ByteBuffer.allocate(read).put(readBuffer).flip();
+                    if (unconsumedBytes.addAndGet(read) > MAX_UNCONSUMED) {
+                        // the session is behind, e.g. waiting on the journal or for a free command thread, so stop
+                        // reading until it catches up; paused before the task is queued, so that task is sure to see
+                        // it and resume reading
+                        readPaused = true;
+                        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                        runSession(() -> consume(received));
+                        return;
+                    }
+                    runSession(() -> consume(received));
+                }
+            } catch (IOException e) {
+                closeNow();
+            }
+        }
+
+        private void consume(ByteBuffer received) {
+            int length = received.remaining();
+            if (!closeAfterFlush && !closed.get()) {
+                if (binary) readFrames(received);
+                else frameLines(received);
+            }
+            if (unconsumedBytes.addAndGet(-length) <= MAX_UNCONSUMED / 2 && readPaused) {
+                readPaused = false;
+                loop.resumeReading(this);
+            }
+        }
+
+        // runs a session callback after everything queued before it, closing the connection if it fails
+        void runSession(Runnable callback) {
+            session.execute(() -> {
+                try {
+                    callback.run();
+                } catch (RuntimeException e) {
+                    System.err.println("error: closing connection after " + e);
+                    closeNow();
+                }
+            });
+        }
+
+        // splits the buffer on newlines and hands each complete line to the session
+        private boolean frameLines(ByteBuffer buffer) {
+            byte[] bytes = buffer.array();
+            int start = buffer.position();
+            int end = buffer.limit();
+
+            for (int i = start; i < end; i++) {
+                if (bytes[i] != '\n') continue;
+
+                String line;
+                if (partialLine == null) {
+                    line = decodeLine(bytes, start, i - start);
+                } else {
+                    partialLine.write(bytes, start, i - start);
+                    byte[] joined = partialLine.toByteArray();
+                    partialLine = null;
+                    line = decodeLine(joined, 0, joined.length);
+                }
+                start = i + 1;
+
+                if (closeAfterFlush || connection.onLine(line)) {
+                    // ignore anything sent after the session has finished
+                    closeAfterFlush = true;
+                    requestWrite();
+                    return false;
+                }
+                if (connection.isBinary()) {
+                    binary = true;
+                    buffer.position(start);
+                    return readFrames(buffer);
+                }
+            }
+
+            if (start < end) {
+                if (partialLine == null) {
+                    partialLine = new ByteArrayOutputStream();
+                }
+                partialLine.write(bytes, start, end - start);
+                if (partialLine.size() > MAX_LINE_LENGTH) {
+                    closeNow();
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // hands each complete [u16 length][type][payload] frame to the session
+        private boolean readFrames(ByteBuffer buffer) {
+            if (partialLine != null) {
+                partialLine.write(buffer.array(), buffer.position(), buffer.remaining());
+                buffer = ByteBuffer.wrap(partialLine.toByteArray());
+                partialLine = null;
+            }
+
+            while (buffer.remaining() >= 2) {
+                int length = buffer.getShort(buffer.position()) & 0xFFFF;
+                if (length == 0 || length > WireProtocol.MAX_FRAME) {
+                    closeNow();
+                    return false;
+                }
+                if (buffer.remaining() < 2 + length) break;
+
+                ByteBuffer frame = buffer.slice(buffer.position() + 2, length);
+                buffer.position(buffer.position() + 2 + length);
+                if (closeAfterFlush || connection.onFrame(frame)) {
+                    closeAfterFlush = true;
+                    requestWrite();
+                    return false;
+                }
+            }
+
+            if (buffer.hasRemaining()) {
+                partialLine = new ByteArrayOutputStream();
+                partialLine.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            }
+            return true;
+        }
+
+        private String decodeLine(byte[] bytes, int offset, int length) {
+            if (length > 0 && bytes[offset + length - 1] == '\r') {
+                length--;
+            }
+            return new String(bytes, offset, length, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public void close() {
+            // closing from a session waits for any queued output, such as the final "exit" line
+            closeAfterFlush = true;
+            requestWrite();
+        }
+
+        void closeNow() {
+            if (!closed.compareAndSet(false, true)) return;
+
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            openConnections.decrementAndGet();
+            if (connection != null) {
+                // after any callback still queued, so a departure never overlaps the session's last command
+                runSession(connection::onClose);
+            }
+        }
+    }
+
+    // buffers characters from the session's PrintWriter and hands them to the channel on flush
+    private static class ChannelWriter extends Writer implements WireProtocol.FrameSink {
+        private final ChannelConnection target;
+        private final StringBuilder pending = new StringBuilder();
+
+        ChannelWriter(ChannelConnection target) {
+            this.target = target;
+        }
+
+        @Override
+        public void write(char[] chars, int offset, int length) {
+            synchronized (pending) {
+                pending.append(chars, offset, length);
+            }
+        }
+
+        @Override
+        public void flush() {
+            ByteBuffer bytes;
+            synchronized (pending) {
+                if (pending.length() == 0) return;
+                bytes = StandardCharsets.UTF_8.encode(pending.toString());
+                pending.setLength(0);
+            }
+            target.enqueue(bytes);
+        }
+
+        @Override
+        public void sendFrame(byte[] frame) {
+            flush();
+            target.enqueue(ByteBuffer.wrap(frame));
+        }
+
+        @Override
+        public void close() {
+            flush();
+        }
+    }
+
+    private class IoLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<SocketChannel> pendingRegistrations = new ConcurrentLinkedQueue<>();
+        private final Queue<ChannelConnection> pendingWrites = new ConcurrentLinkedQueue<>();
+        private final Queue<ChannelConnection> pendingResumes = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+        IoLoop(String name) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, name);
+            this.thread.setDaemon(true);
+        }
+
+        void register(SocketChannel channel) {
+            pendingRegistrations.add(channel);
+            selector.wakeup();
+        }
+
+        // interest ops are only changed on this loop's thread, so a resume never races a write's OP_WRITE
+        void resumeReading(ChannelConnection conn) {
+            pendingResumes.add(conn);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                    registerPending();
+                    flushPending();
+                    resumePending();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        ChannelConnection conn = (ChannelConnection) key.attachment();
+
+                        // a session callback that fails ends only its own connection, never the whole loop
+                        try {
+                            if (key.isValid() && key.isWritable()) {
+                                conn.flushOutbound();
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                conn.readAvailable(readBuffer);
+                            }
+                        } catch (RuntimeException e) {
+                            if (!(e instanceof CancelledKeyException)) {
+                                System.err.println("error: closing connection after " + e);
+                            }
+                            conn.closeNow();
+                        }
+                    }
+                } catch (IOException | CancelledKeyException e) {
+                    if (running) {
+                        System.err.println("error: " + e.getMessage());
+                    }
+                }
+            }
+        }
+
+        private void registerPending() {
+            SocketChannel channel;
+            while ((channel = pendingRegistrations.poll()) != null) {
+                ChannelConnection conn = new ChannelConnection(channel, this);
+                try {
+                    conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+                } catch (ClosedChannelException e) {
+                    continue;
+                }
+                openConnections.incrementAndGet();
+                ChannelWriter writer = new ChannelWriter(conn);
+                conn.connection = factory.create(new PrintWriter(writer, true), writer, conn);
+                conn.runSession(conn.connection::onOpen);
+            }
+        }
+
+        private void flushPending() {
+            ChannelConnection conn;
+            while ((conn = pendingWrites.poll()) != null) {
+                conn.flushOutbound();
+            }
+        }
+
+        private void resumePending() {
+            ChannelConnection conn;
+            while ((conn = pendingResumes.poll()) != null) {
+                try {
+                    if (conn.key != null && conn.key.isValid() && !conn.closeAfterFlush) {
+                        conn.key.interestOps(conn.key.interestOps() | SelectionKey.OP_READ);
+                    }
+                } catch (CancelledKeyException ignored) {
+                    // closed by its session in the meantime
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package helpers;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+// creates the threads customer sessions and brewing workers run on, using virtual threads when the
+// runtime has them (java 21 or later) and plain platform threads otherwise
+public class SessionExecutors {
+
+    // looked up reflectively so the café still compiles and runs on java 17
+    private static final ThreadFactory virtualFactory = lookupVirtualThreadFactory();
+
+    private static ThreadFactory lookupVirtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    public static boolean virtualThreadsAvailable() {
+        return virtualFactory != null;
+    }
+
+    public static ThreadFactory threadFactory(boolean virtual) {
+        if (virtual && virtualFactory != null) {
+            return virtualFactory;
+        }
+        return Thread::new;
+    }
+
+    // starts every task on a thread of its own, the same as calling new Thread(task).start()
+    public static Executor perTaskExecutor(boolean virtual) {
+        ThreadFactory factory = threadFactory(virtual);
+        return task -> factory.newThread(task).start();
+    }
+
+    // runs short socket writer tasks, on a fresh virtual thread each or on a shared pool of platform threads
+    public static Executor writerExecutor(boolean virtual) {
+        return pooledExecutor(virtual, "session-writer");
+    }
+
+    // runs the commands of selector mode sessions, which may wait on the event loop or the journal. without
+    // virtual threads at most this many run at once; a session queues one task at a time, and one waiting for
+    // a thread stops being read once its unhandled input passes a limit, so a flood of commands is held back
+    // at the socket rather than growing threads or memory
+    public static Executor commandExecutor(boolean virtual, int threads) {
+        if (virtual && virtualFactory != null) {
+            return perTaskExecutor(true);
+        }
+        return Executors.newFixedThreadPool(threads, daemonFactory("session-commands"));
+    }
+
+    private static Executor pooledExecutor(boolean virtual, String name) {
+        if (virtual && virtualFactory != null) {
+            return perTaskExecutor(true);
+        }
+        return Executors.newCachedThreadPool(daemonFactory(name));
+    }
+
+    private static ThreadFactory daemonFactory(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,143 @@
+package helpers;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// outbound queue for one blocking connection, where any thread may flush a message and a single writer
+// task sends everything pending with one write, so producers never wait on the customer's socket
+public class SessionOutbox extends Writer implements WireProtocol.FrameSink {
+    private final OutputStream target;
+    private final Closeable connection;
+    private final Executor writerExecutor;
+    private final long highWaterBytes;
+
+    private final StringBuilder pending = new StringBuilder();
+    private final Queue<byte[]> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong(0);
+    private final AtomicBoolean writerScheduled = new AtomicBoolean(false);
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private volatile boolean closeAfterFlush = false;
+
+    public SessionOutbox(OutputStream target, Closeable connection, Executor writerExecutor, long highWaterBytes) {
+        this.target = target;
+        this.connection = connection;
+        this.writerExecutor = writerExecutor;
+        this.highWaterBytes = highWaterBytes;
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int length) {
+        synchronized (pending) {
+            pending.append(chars, offset, length);
+        }
+    }
+
+    // queues what has been written so far as one message
+    @Override
+    public void flush() {
+        byte[] bytes;
+        synchronized (pending) {
+            if (pending.length() == 0) return;
+            bytes = pending.toString().getBytes(StandardCharsets.UTF_8);
+            pending.setLength(0);
+        }
+        enqueue(bytes);
+    }
+
+    // queues a binary frame as one message, after any text written before it
+    @Override
+    public void sendFrame(byte[] frame) {
+        flush();
+        enqueue(frame);
+    }
+
+    private void enqueue(byte[] bytes) {
+        if (closed.get()) return;
+
+        queue.add(bytes);
+        if (queuedBytes.addAndGet(bytes.length) > highWaterBytes) {
+            // the customer is not reading, so they are disconnected rather than buffered without limit
+            closeNow();
+            return;
+        }
+        scheduleWriter();
+    }
+
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    private void scheduleWriter() {
+        if (writerScheduled.compareAndSet(false, true)) {
+            writerExecutor.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            List<byte[]> batch = new ArrayList<>();
+            int size = 0;
+            byte[] next;
+            while ((next = queue.poll()) != null) {
+                batch.add(next);
+                size += next.length;
+            }
+
+            if (!batch.isEmpty()) {
+                byte[] joined = new byte[size];
+                int position = 0;
+                for (byte[] message : batch) {
+                    System.arraycopy(message, 0, joined, position, message.length);
+                    position += message.length;
+                }
+                try {
+                    target.write(joined);
+                    target.flush();
+                } catch (IOException e) {
+                    closeNow();
+                    return;
+                }
+                queuedBytes.addAndGet(-size);
+            }
+
+            writerScheduled.set(false);
+            // a message queued after the last poll but before the flag was cleared still needs a writer
+            if (queue.isEmpty() || !writerScheduled.compareAndSet(false, true)) {
+                break;
+            }
+        }
+
+        if (closeAfterFlush && queue.isEmpty()) {
+            closeNow();
+        }
+    }
+
+    // sends anything still queued, such as the final "exit" line, before closing the connection
+    @Override
+    public void close() {
+        flush();
+        closeAfterFlush = true;
+        if (writerScheduled.compareAndSet(false, true)) {
+            writerExecutor.execute(this::drain);
+        }
+    }
+
+    private void closeNow() {
+        if (!closed.compareAndSet(false, true)) return;
+        queue.clear();
+        try {
+            connection.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -2,23 +2,31 @@ package helpers;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
-import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
 
 public class StateLogger {
-    private static final String LOG_FILE = "cafe_log.json";
-    private static final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+    // one compact json object per line, so each state change is appended without rereading the history
+    // -Dcafe.log.file=path writes elsewhere, e.g. so benchmarks leave the real log alone
+    private static final String LOG_FILE = System.getProperty("cafe.log.file", "cafe_log.jsonl");
+    private static final Gson gson = new Gson();
+    private static final Gson prettyGson = new GsonBuilder().setPrettyPrinting().create();
     private static final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
 
+    private static FileChannel channel;
+
+    // timestamps come from the café clock, which a simulation replaces with virtual time
+    private static volatile CafeClock clock = CafeClock.SYSTEM;
+
     static {
         try {
-            if (!Files.exists(Paths.get(LOG_FILE))) {
-                Files.write(Paths.get(LOG_FILE), "[]".getBytes());
-            }
+            channel = FileChannel.open(Paths.get(LOG_FILE),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
         } catch (IOException ignored) {
         }
     }
@@ -28,25 +36,27 @@ public class StateLogger {
         final State state;
 
         LogEntry(State state) {
-            this.timestamp = LocalDateTime.now().format(formatter);
+            this.timestamp = clock.now().format(formatter);
             this.state = state;
         }
     }
 
     public static class State {
+        final long version;
         final int totalCustomers;
         final int waitingCustomers;
         final DrinkCount waitingArea;
         final DrinkCount brewingArea;
         final DrinkCount trayArea;
 
-        public State(AtomicInteger totalCustomers, AtomicInteger waitingCustomers,
-                     DrinkCount waitingArea, DrinkCount brewingArea, DrinkCount trayArea) {
-            this.totalCustomers = totalCustomers.get();
-            this.waitingCustomers = waitingCustomers.get();
-            this.waitingArea = waitingArea;
-            this.brewingArea = brewingArea;
-            this.trayArea = trayArea;
+        // copied from a single counters version, so every field describes the same moment
+        public State(CafeCounters.Snapshot snapshot) {
+            this.version = snapshot.version;
+            this.totalCustomers = snapshot.totalCustomers;
+            this.waitingCustomers = snapshot.waitingCustomers;
+            this.waitingArea = new DrinkCount(snapshot.waitingTeas, snapshot.waitingCoffees);
+            this.brewingArea = new DrinkCount(snapshot.brewingTeas, snapshot.brewingCoffees);
+            this.trayArea = new DrinkCount(snapshot.trayTeas, snapshot.trayCoffees);
         }
     }
 
@@ -54,29 +64,129 @@ public class StateLogger {
         final int teas;
         final int coffees;
 
-        public DrinkCount(AtomicInteger teas, AtomicInteger coffees) {
-            this.teas = teas.get();
-            this.coffees = coffees.get();
+        public DrinkCount(int teas, int coffees) {
+            this.teas = teas;
+            this.coffees = coffees;
         }
     }
 
+    public static void setClock(CafeClock cafeClock) {
+        clock = cafeClock;
+    }
+
     public static void log(State state) {
+        append(List.of(new LogEntry(state)), false);
+    }
+
+    // writes a batch of entries with a single append, optionally forcing them to disk
+    public static void append(List<LogEntry> entries, boolean force) {
+        if (channel == null || entries.isEmpty()) {
+            return;
+        }
+
+        StringBuilder lines = new StringBuilder();
+        for (LogEntry entry : entries) {
+            lines.append(gson.toJson(entry)).append("\n");
+        }
+        ByteBuffer buffer = StandardCharsets.UTF_8.encode(lines.toString());
+
         try {
+            // only serialises the append itself, so the cost stays the same however long the log grows
             synchronized (StateLogger.class) {
-                List<LogEntry> entries;
-                Path path = Paths.get(LOG_FILE);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                if (force) {
+                    channel.force(false);
+                }
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    // the console summary printed for every state change
+    public static String formatBanner(State state) {
+        StringBuilder banner = new StringBuilder("\n-+-+-+-+-+-+-+-+-+\n");
+
+        banner.append("clients in café: ").append(state.totalCustomers).append("\n");
+        banner.append("clients waiting: ").append(state.waitingCustomers).append("\n");
+        banner.append("waiting area: ").append(formatDrinks(state.waitingArea)).append("\n");
+        banner.append("brewing area: ").append(formatDrinks(state.brewingArea)).append("\n");
+        banner.append("tray area: ").append(formatDrinks(state.trayArea)).append("\n");
+
+        banner.append("-+-+-+-+-+-+-+-+-+");
+        return banner.toString();
+    }
 
-                try (Reader reader = Files.newBufferedReader(path)) {
-                    entries = new ArrayList<>(List.of(gson.fromJson(reader, LogEntry[].class)));
+    private static String formatDrinks(DrinkCount count) {
+        if (count.teas <= 0 && count.coffees <= 0) {
+            return "empty";
+        }
+
+        StringBuilder sb = new StringBuilder();
+        if (count.teas > 0) {
+            sb.append(count.teas).append(" tea").append(count.teas != 1 ? "s" : "");
+            if (count.coffees > 0) sb.append(" and ");
+        }
+        if (count.coffees > 0) {
+            sb.append(count.coffees).append(" coffee").append(count.coffees != 1 ? "s" : "");
+        }
+        return sb.toString();
+    }
+
+    // rebuilds the full history from the line based log, skipping a partially written final line
+    public static List<LogEntry> readEntries() throws IOException {
+        List<LogEntry> entries = new ArrayList<>();
+        Path path = Paths.get(LOG_FILE);
+        if (!Files.exists(path)) {
+            return entries;
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(path)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) continue;
+                try {
+                    entries.add(gson.fromJson(line, LogEntry.class));
+                } catch (RuntimeException ignored) {
                 }
+            }
+        }
+        return entries;
+    }
 
-                entries.add(new LogEntry(state));
+    // produces the original pretty printed json array view of the log
+    public static String toJsonArray() throws IOException {
+        return prettyGson.toJson(readEntries());
+    }
 
-                try (Writer writer = Files.newBufferedWriter(path)) {
-                    gson.toJson(entries, writer);
+    public static void exportJsonArray(Path target) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(target)) {
+            prettyGson.toJson(readEntries(), writer);
+        }
+    }
+
+    public static void close() {
+        synchronized (StateLogger.class) {
+            try {
+                if (channel != null) {
+                    channel.close();
                 }
+            } catch (IOException ignored) {
             }
-        } catch (IOException ignored) {
         }
     }
-}
\ No newline at end of file
+
+    // converts the line based log into the array format, e.g. java -cp ".:gson.jar" helpers.StateLogger cafe_log.json
+    public static void main(String[] args) {
+        try {
+            if (args.length > 0) {
+                exportJsonArray(Paths.get(args[0]));
+            } else {
+                System.out.println(toJsonArray());
+            }
+        } catch (IOException e) {
+            System.err.println("error: " + e.getMessage());
+        }
+    }
+}
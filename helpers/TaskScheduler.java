@@ -0,0 +1,45 @@
+package helpers;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// runs café work now or after a delay, backed by timer threads or by a simulation's virtual time
+public interface TaskScheduler {
+
+    interface Cancellable {
+        boolean cancel();
+    }
+
+    void execute(Runnable task);
+
+    Cancellable schedule(Runnable task, long delayMillis);
+
+    void shutdown();
+
+    static TaskScheduler fromExecutor(ScheduledThreadPoolExecutor executor) {
+        executor.setRemoveOnCancelPolicy(true);
+        return new TaskScheduler() {
+            @Override
+            public void execute(Runnable task) {
+                executor.execute(task);
+            }
+
+            @Override
+            public Cancellable schedule(Runnable task, long delayMillis) {
+                ScheduledFuture<?> future = executor.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+                return () -> future.cancel(false);
+            }
+
+            @Override
+            public void shutdown() {
+                executor.shutdownNow();
+                try {
+                    executor.awaitTermination(1, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+}
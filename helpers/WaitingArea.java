@@ -0,0 +1,163 @@
+package helpers;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// waiting items kept in one FIFO queue per drink type, so taking the next tea never looks at coffees;
+// items carry an arrival number to keep the overall order. only the café's event loop touches it, so it
+// needs no locks
+public class WaitingArea {
+
+    private static class Node {
+        final Order.OrderItem item;
+        final CustomerInfo customer;
+        final long arrival;
+        Node prev;
+        Node next;
+
+        Node(Order.OrderItem item, long arrival) {
+            this.item = item;
+            this.customer = item.getOrder().getCustomer();
+            this.arrival = arrival;
+        }
+    }
+
+    // doubly linked so any node can be unlinked in constant time
+    private static class TypeQueue {
+        Node head;
+        Node tail;
+        int size;
+
+        void link(Node node) {
+            node.prev = tail;
+            if (tail == null) {
+                head = node;
+            } else {
+                tail.next = node;
+            }
+            tail = node;
+            size++;
+        }
+
+        void unlink(Node node) {
+            if (node.prev == null) {
+                head = node.next;
+            } else {
+                node.prev.next = node.next;
+            }
+            if (node.next == null) {
+                tail = node.prev;
+            } else {
+                node.next.prev = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+            size--;
+        }
+    }
+
+    private final TypeQueue teas = new TypeQueue();
+    private final TypeQueue coffees = new TypeQueue();
+    private long arrivals = 0;
+
+    // each customer's waiting nodes, so a departing customer's items are found without a scan
+    private final Map<CustomerInfo, Set<Node>> byCustomer = new HashMap<>();
+
+    private TypeQueue queueFor(boolean isTea) {
+        return isTea ? teas : coffees;
+    }
+
+    public void addAll(List<Order.OrderItem> items) {
+        for (Order.OrderItem item : items) {
+            add(item);
+        }
+    }
+
+    public void add(Order.OrderItem item) {
+        Node node = new Node(item, ++arrivals);
+        byCustomer.computeIfAbsent(node.customer, customer -> new LinkedHashSet<>()).add(node);
+        queueFor(item.isTea()).link(node);
+    }
+
+    // takes the longest waiting item of one type in constant time
+    public Order.OrderItem poll(boolean isTea) {
+        TypeQueue queue = queueFor(isTea);
+        Node node = queue.head;
+        if (node == null) {
+            return null;
+        }
+        queue.unlink(node);
+        unindex(node);
+        return node.item;
+    }
+
+    // takes the longest waiting item of one type that is not cancelled, which is nearly always the head
+    public Order.OrderItem pollUncancelled(boolean isTea) {
+        TypeQueue queue = queueFor(isTea);
+        Node node = queue.head;
+        while (node != null && node.item.isCancelled()) {
+            node = node.next;
+        }
+        if (node == null) {
+            return null;
+        }
+        queue.unlink(node);
+        unindex(node);
+        return node.item;
+    }
+
+    // removes every waiting item of a customer, touching only that customer's items
+    public List<Order.OrderItem> removeCustomer(CustomerInfo customer) {
+        List<Order.OrderItem> removed = new ArrayList<>();
+        Set<Node> nodes = byCustomer.remove(customer);
+        if (nodes == null) {
+            return removed;
+        }
+        for (Node node : nodes) {
+            queueFor(node.item.isTea()).unlink(node);
+            removed.add(node.item);
+        }
+        return removed;
+    }
+
+    private void unindex(Node node) {
+        Set<Node> nodes = byCustomer.get(node.customer);
+        nodes.remove(node);
+        if (nodes.isEmpty()) {
+            byCustomer.remove(node.customer);
+        }
+    }
+
+    public List<Order.OrderItem> itemsOf(CustomerInfo customer) {
+        List<Order.OrderItem> items = new ArrayList<>();
+        for (Node node : byCustomer.getOrDefault(customer, Set.of())) {
+            items.add(node.item);
+        }
+        return items;
+    }
+
+    // every waiting item in arrival order, merged from both queues
+    public List<Order.OrderItem> snapshot() {
+        List<Order.OrderItem> items = new ArrayList<>();
+        Node tea = teas.head;
+        Node coffee = coffees.head;
+        while (tea != null || coffee != null) {
+            if (coffee == null || (tea != null && tea.arrival < coffee.arrival)) {
+                items.add(tea.item);
+                tea = tea.next;
+            } else {
+                items.add(coffee.item);
+                coffee = coffee.next;
+            }
+        }
+        return items;
+    }
+
+    public int size() {
+        return teas.size + coffees.size;
+    }
+}
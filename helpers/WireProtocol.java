@@ -0,0 +1,190 @@
+package helpers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// compact binary alternative to the customer line protocol. a client opts in by answering the name prompt
+// with "@binary/1 <name>" instead of just its name, and from then on both sides exchange frames of
+// [u16 length][u8 type][payload], with ints big endian and strings as [u16 length][utf-8 bytes]. every
+// reply and notification is exactly one frame, so neither side has to guess where a message ends. a
+// command wrapped in TAGGED gets its reply wrapped in REPLY with the same request id, so a client can
+// pipeline commands and still match each reply to its command among pushed notifications
+public final class WireProtocol {
+
+    public static final String HANDSHAKE = "@binary/1 ";
+
+    // the largest frame either side accepts from the other
+    public static final int MAX_FRAME = 8 * 1024;
+    public static final int MAX_LINE = 8 * 1024;
+
+    // customer to barista
+    public static final byte ORDER = 1;          // [int teas][int coffees], placed or added to the order
+    public static final byte STATUS = 2;
+    public static final byte COLLECT = 3;
+    public static final byte EXIT = 4;
+    public static final byte STATS = 5;
+    public static final byte BATCH = 6;          // [u16 items] then each item's [int teas][int coffees]
+    public static final byte TAGGED = 7;         // [int request id] then a whole command's type and payload
+
+    // barista to customer
+    public static final byte REGISTERED = 16;    // [string name]
+    public static final byte ORDER_PLACED = 17;  // [int teas][int coffees] of the whole order
+    public static final byte ORDER_UPDATED = 18; // [int teas][int coffees] of the whole order
+    public static final byte ORDER_STATUS = 19;  // [int teas][int coffees] waiting, then brewing, then on the tray
+    public static final byte COLLECTED = 20;
+    public static final byte COMPLETED = 21;     // [int teas][int coffees], pushed once the order is ready
+    public static final byte REPURPOSED = 22;    // [u8 is tea][u8 from tray][string from customer], pushed
+    public static final byte RESTORED = 23;      // [int teas][int coffees] of an order kept across a restart
+    public static final byte TEXT = 24;          // [string], e.g. the stats report
+    public static final byte ERROR = 25;         // [u8 code][string detail]
+    public static final byte BYE = 26;           // the reply to exit
+    public static final byte REPLY = 27;         // [int request id] then the reply's type and payload
+
+    // error codes, with the detail only filled in where the code alone does not say it all
+    public static final byte INVALID_COMMAND = 1;
+    public static final byte INVALID_ORDER = 2;
+    public static final byte NO_ORDER = 3;
+    public static final byte NOT_READY = 4;
+    public static final byte COLLECT_FIRST = 5;
+    public static final byte ORDER_REFUSED = 6;
+    public static final byte EMPTY_NAME = 7;
+
+    // where frames are sent, queued behind any text already written to the same connection
+    public interface FrameSink {
+        void sendFrame(byte[] frame);
+    }
+
+    private WireProtocol() {
+    }
+
+    public static byte[] frame(byte type, int... values) {
+        ByteBuffer frame = start(type, 4 * values.length);
+        for (int value : values) {
+            frame.putInt(value);
+        }
+        return frame.array();
+    }
+
+    // teas and coffees of each line item, given as pairs
+    public static byte[] batchFrame(int... quantities) {
+        ByteBuffer frame = start(BATCH, 2 + 4 * quantities.length);
+        frame.putShort((short) (quantities.length / 2));
+        for (int quantity : quantities) {
+            frame.putInt(quantity);
+        }
+        return frame.array();
+    }
+
+    // wraps a whole frame after a request id, as TAGGED for a command or REPLY for its reply
+    public static byte[] tagged(byte type, int requestId, byte[] frame) {
+        ByteBuffer tagged = start(type, 4 + frame.length - 2);
+        tagged.putInt(requestId);
+        tagged.put(frame, 2, frame.length - 2);
+        return tagged.array();
+    }
+
+    public static byte[] textFrame(byte type, String text) {
+        byte[] bytes = utf8(text);
+        ByteBuffer frame = start(type, 2 + bytes.length);
+        putString(frame, bytes);
+        return frame.array();
+    }
+
+    public static byte[] errorFrame(byte code, String detail) {
+        byte[] bytes = utf8(detail);
+        ByteBuffer frame = start(ERROR, 3 + bytes.length);
+        frame.put(code);
+        putString(frame, bytes);
+        return frame.array();
+    }
+
+    public static byte[] repurposedFrame(boolean isTea, boolean fromTray, String fromCustomer) {
+        byte[] bytes = utf8(fromCustomer);
+        ByteBuffer frame = start(REPURPOSED, 4 + bytes.length);
+        frame.put((byte) (isTea ? 1 : 0));
+        frame.put((byte) (fromTray ? 1 : 0));
+        putString(frame, bytes);
+        return frame.array();
+    }
+
+    private static ByteBuffer start(byte type, int payloadLength) {
+        int length = 1 + payloadLength;
+        if (length > 0xFFFF) {
+            throw new IllegalArgumentException("frame of " + length + " bytes is too long");
+        }
+        ByteBuffer frame = ByteBuffer.allocate(2 + length);
+        frame.putShort((short) length);
+        frame.put(type);
+        return frame;
+    }
+
+    // the most a string may take so its frame is still read: a tagged reply's type and request id, the
+    // frame's own type, up to two fixed bytes (an error code or a repurposed drink's flags) and the string's length
+    private static final int MAX_STRING = MAX_FRAME - (1 + 4 + 1 + 2 + 2);
+
+    // strings are cut to what a frame can hold rather than failing the whole reply, at a character boundary
+    private static byte[] utf8(String text) {
+        byte[] bytes = (text == null ? "" : text).getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_STRING) {
+            int length = MAX_STRING;
+            while ((bytes[length] & 0xC0) == 0x80) {
+                length--;
+            }
+            byte[] cut = new byte[length];
+            System.arraycopy(bytes, 0, cut, 0, length);
+            return cut;
+        }
+        return bytes;
+    }
+
+    private static void putString(ByteBuffer frame, byte[] bytes) {
+        frame.putShort((short) bytes.length);
+        frame.put(bytes);
+    }
+
+    public static String getString(ByteBuffer frame) {
+        int length = frame.getShort() & 0xFFFF;
+        String text = new String(frame.array(), frame.arrayOffset() + frame.position(), length, StandardCharsets.UTF_8);
+        frame.position(frame.position() + length);
+        return text;
+    }
+
+    // the type and payload of the next frame, or null once the stream ends cleanly between frames
+    public static ByteBuffer readFrame(DataInputStream in, int maxLength) throws IOException {
+        int high = in.read();
+        if (high < 0) {
+            return null;
+        }
+        int length = (high << 8) | in.readUnsignedByte();
+        if (length == 0 || length > maxLength) {
+            throw new IOException("bad frame length " + length);
+        }
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        return ByteBuffer.wrap(frame);
+    }
+
+    // reads one line a byte at a time, so nothing after it is buffered away from whoever reads next,
+    // e.g. the frames that follow the handshake; null at the end of the stream
+    public static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int next;
+        while ((next = in.read()) != '\n') {
+            if (next < 0) {
+                if (line.size() == 0) return null;
+                break;
+            }
+            if (line.size() == MAX_LINE) {
+                throw new IOException("line too long");
+            }
+            line.write(next);
+        }
+        byte[] bytes = line.toByteArray();
+        int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+}